@@ -1,20 +1,25 @@
 package tpa1.client;
 
-import io.grpc.*;
-import io.grpc.stub.StreamObserver;
-import io.grpc.netty.shaded.io.grpc.netty.NettyChannelBuilder;
-import manager_client.*;
-import manager_client.ManagerClient.*;
-import img_client.ImgClient.*;
-import img_client.ImgServerClientServiceGrpc;
+import img_client.ImgClient.EncodeOptions;
+import tpa1.clientlib.ImgClient;
 
-import java.io.*;
 import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Stream;
 
 public class Main {
     static boolean DEBUG = Boolean.parseBoolean(System.getProperty("debug", "false"));
     static final Scanner scanner = new Scanner(System.in);
+    static final Path DOWNLOAD_DIR = Path.of(System.getProperty("out", "."));
+
+    // === Codificação do resultado (0/false = padrão do servidor) ===
+    static final EncodeOptions ENCODE = EncodeOptions.newBuilder()
+            .setJpegQuality(Integer.parseInt(System.getProperty("quality", "0")))
+            .setProgressive(Boolean.parseBoolean(System.getProperty("progressive", "false")))
+            .setChroma444(Boolean.parseBoolean(System.getProperty("chroma444", "false")))
+            .setPngLevel(Integer.parseInt(System.getProperty("pngLevel", "0")))
+            .build();
 
     public static void main(String[] args) throws Exception {
 
@@ -35,48 +40,39 @@ public class Main {
 
         debug("[DEBUG] Stack IPv4 + DNS configurado com sucesso.");
 
+        int parallel = Integer.parseInt(System.getProperty("parallel", "8"));
+
         // === Modo direto (salta Manager) OU modo normal ===
         String directIpProp = System.getProperty("imgIp");
         String directPortProp = System.getProperty("imgPort");
 
-        String imgIp;
-        int imgPort;
-
+        ImgClient client;
         if (directIpProp != null && directPortProp != null) {
             // ---------- MODO DIRETO ----------
-            imgIp = directIpProp.trim();
-            imgPort = Integer.parseInt(directPortProp.trim());
+            String imgIp = directIpProp.trim();
+            int imgPort = Integer.parseInt(directPortProp.trim());
             System.out.printf("[Client] MODO DIRETO: a usar ImgServer %s:%d (sem contactar Manager)%n", imgIp, imgPort);
+            client = ImgClient.direct(imgIp, imgPort, parallel);
         } else {
             // ---------- MODO NORMAL (usa Manager) ----------
-            // === Obter ImgServer do ManagerServer ===
             String managerIp = System.getProperty("managerIp", "127.0.0.1");
             int managerPort = Integer.parseInt(System.getProperty("managerPort", "50051"));
-            System.out.printf("[Client] Ligando ao ManagerServer %s:%d ...%n", managerIp, managerPort);
-
-
-            ManagedChannel managerChannel = NettyChannelBuilder.forAddress(managerIp, managerPort)
-                    .usePlaintext()
-                    .build();
-
-            var mstub = ManagerServerClientServiceGrpc.newBlockingStub(managerChannel);
-            GetImgServerResponse sel = mstub.getImgServer(GetImgServerRequest.getDefaultInstance());
-            managerChannel.shutdownNow();
-
-            imgIp = sel.getImgServerIp();
-            imgPort = sel.getImgServerPort();
+            System.out.printf("[Client] A usar ManagerServer %s:%d%n", managerIp, managerPort);
+            client = ImgClient.viaManager(managerIp, managerPort, parallel);
+        }
 
-            System.out.printf("[Client] ImgServer designado: %s:%d%n", imgIp, imgPort);
+        // === Prioridade: menu interativo → interactive, árvore de diretórios → batch ===
+        String dir = System.getProperty("dir");
+        client.priority(ImgClient.parsePriority(System.getProperty("priority", dir != null ? "batch" : "interactive")));
 
+        // === Modo CLI: processa uma árvore de diretórios em paralelo ===
+        if (dir != null) {
+            try (client) {
+                processarDiretorio(client, Path.of(dir));
+            }
+            return;
         }
 
-        // === Canal principal persistente ===
-        ManagedChannel mainChannel = NettyChannelBuilder.forAddress(imgIp, imgPort)
-                .usePlaintext()
-                .build();
-        ImgServerClientServiceGrpc.ImgServerClientServiceStub asyncStub =
-                ImgServerClientServiceGrpc.newStub(mainChannel);
-
         // === Menu interativo ===
         while (true) {
             System.out.println("\n=== Cliente ImgServer ===");
@@ -87,11 +83,11 @@ public class Main {
             String op = scanner.nextLine().trim();
 
             switch (op) {
-                case "1" -> enviarImagens(asyncStub);
-                case "2" -> descarregarImagens(asyncStub);
+                case "1" -> enviarImagens(client);
+                case "2" -> descarregarImagens(client);
                 case "3" -> {
                     System.out.println("[Client] Encerrando aplicação...");
-                    mainChannel.shutdownNow();
+                    client.close();
                     return;
                 }
                 default -> System.out.println("[WARN] Opção inválida!");
@@ -99,8 +95,8 @@ public class Main {
         }
     }
 
-    // === Envio de múltiplas imagens ===
-    static void enviarImagens(ImgServerClientServiceGrpc.ImgServerClientServiceStub stub) throws Exception {
+    // === Envio de múltiplas imagens (em paralelo) ===
+    static void enviarImagens(ImgClient client) {
         List<String> files = new ArrayList<>();
         System.out.println("Digite os caminhos das imagens a enviar (ou 'exit' para terminar):");
         while (true) {
@@ -111,8 +107,7 @@ public class Main {
                 System.out.println("[WARN] Ficheiro não encontrado: " + file);
                 continue;
             }
-            String lower = file.toLowerCase();
-            if (!(lower.endsWith(".png") || lower.endsWith(".jpg") || lower.endsWith(".jpeg"))) {
+            if (!isImage(Path.of(file))) {
                 System.out.println("[WARN] Ignorado (não é imagem suportada): " + file);
                 continue;
             }
@@ -124,45 +119,18 @@ public class Main {
             return;
         }
 
-        for (String f : files) {
-            String req = upload(stub, f);
-            System.out.printf("[Client] Enviado %s -> requestId = %s%n", f, req);
-        }
-    }
-
-    // === Upload simples ===
-    static String upload(ImgServerClientServiceGrpc.ImgServerClientServiceStub stub, String file) throws Exception {
-        final String[] rid = {null};
-        StreamObserver<UploadImageResponse> respObs = new StreamObserver<>() {
-            public void onNext(UploadImageResponse v) {
-                rid[0] = v.getRequestId();
-                System.out.println("[Client] requestId=" + rid[0]);
-            }
-            public void onError(Throwable t) {
-                System.err.println("[Client] Erro no upload: " + t.getMessage());
-            }
-            public void onCompleted() {}
-        };
-
-        StreamObserver<ImageChunk> reqObs = stub.uploadImage(respObs);
-        try (InputStream in = Files.newInputStream(Path.of(file))) {
-            byte[] buf = new byte[8192];
-            int n;
-            while ((n = in.read(buf)) != -1) {
-                reqObs.onNext(ImageChunk.newBuilder()
-                        .setData(com.google.protobuf.ByteString.copyFrom(buf, 0, n))
-                        .build());
-            }
-        }
-        reqObs.onCompleted();
-
-        int tries = 0;
-        while (rid[0] == null && tries++ < 50) Thread.sleep(100);
-        return rid[0];
+        CompletableFuture<?>[] all = files.stream()
+                .map(f -> client.upload(Path.of(f), ENCODE).handle((req, err) -> {
+                    if (err != null) System.err.printf("[Client] Falha ao enviar %s: %s%n", f, rootMessage(err));
+                    else System.out.printf("[Client] Enviado %s -> requestId = %s%n", f, req);
+                    return null;
+                }))
+                .toArray(CompletableFuture[]::new);
+        CompletableFuture.allOf(all).join();
     }
 
     // === Download de várias imagens (assíncrono) ===
-    static void descarregarImagens(ImgServerClientServiceGrpc.ImgServerClientServiceStub stub) {
+    static void descarregarImagens(ImgClient client) {
         List<String> ids = new ArrayList<>();
         System.out.println("Digite os requestIds a descarregar (ou 'exit' para terminar):");
         while (true) {
@@ -173,111 +141,52 @@ public class Main {
         }
 
         for (String reqId : ids) {
-            downloadAsync(stub, reqId);
+            client.download(reqId, DOWNLOAD_DIR).whenComplete((p, err) -> {
+                if (err != null) System.err.printf("[Client] Erro no download de %s: %s%n", reqId, rootMessage(err));
+                else System.out.println("[Client] Download concluído: " + p);
+            });
         }
     }
 
-    // === Download streaming com suporte a redirect ===
-    static void downloadAsync(ImgServerClientServiceGrpc.ImgServerClientServiceStub stub, String requestId) {
-
-        StreamObserver<DownloadImageChunk> respObs = new StreamObserver<>() {
-            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-
-            @Override
-            public void onNext(DownloadImageChunk chunk) {
-                if (chunk.hasData()) {
-                    try {
-                        buffer.write(chunk.getData().toByteArray());
-                    } catch (IOException e) {
-                        System.err.println("[Client] Erro ao escrever chunk: " + e.getMessage());
-                    }
-                } else if (chunk.hasStatus()) {
-                    DownloadImageStatus s = chunk.getStatus();
-                    switch (s.getStatus()) {
-                        case "REDIRECT" -> {
-                            System.out.printf("[Client] Redirecionado para %s:%d%n", s.getRedirectIp(), s.getRedirectPort());
-                            ManagedChannel redirectChannel = NettyChannelBuilder.forAddress(s.getRedirectIp(), s.getRedirectPort())
-                                    .usePlaintext().build();
-                            var redirectStub = ImgServerClientServiceGrpc.newStub(redirectChannel);
-                            downloadWithChannelClose(redirectStub, requestId, redirectChannel);
-                        }
-                        case "PROCESSING" -> {
-                            System.out.println("[Client] Ainda a processar " + requestId + " ...");
-                            try {
-                                Thread.sleep(1000);
-                            } catch (InterruptedException ignored) {}
-                            stub.downloadImage(DownloadImageRequest.newBuilder()
-                                    .setRequestId(requestId).build(), this);
-                        }
-                        case "DONE" -> {
-                            String ext = guessImageExtension(buffer.toByteArray());
-                            String name = "download-" + requestId + ext;
-                            try {
-                                Files.write(Path.of(name), buffer.toByteArray());
-                                System.out.println("[Client] Download concluído: " + name);
-                            } catch (IOException e) {
-                                System.err.println("[Client] Erro ao salvar ficheiro: " + e.getMessage());
+    // === Upload + download de todas as imagens de uma árvore de diretórios ===
+    static void processarDiretorio(ImgClient client, Path root) throws Exception {
+        List<Path> files;
+        try (Stream<Path> s = Files.walk(root)) {
+            files = s.filter(Files::isRegularFile).filter(Main::isImage).toList();
+        }
+        System.out.printf("[Client] %d imagens encontradas em %s%n", files.size(), root);
+
+        long start = System.currentTimeMillis();
+        int[] failed = {0};
+        CompletableFuture<?>[] all = files.stream()
+                .map(f -> client.process(f, ENCODE, DOWNLOAD_DIR.resolve(root.relativize(f.getParent())))
+                        .handle((out, err) -> {
+                            if (err != null) {
+                                synchronized (failed) { failed[0]++; }
+                                System.err.printf("[Client] Falha em %s: %s%n", f, rootMessage(err));
+                            } else {
+                                System.out.printf("[Client] %s -> %s%n", f, out);
                             }
-                        }
-                        case "ERROR" -> System.err.println("[Client] Erro: " + s.getMessage());
-                    }
-                }
-            }
-
-            @Override
-            public void onError(Throwable t) {
-                System.err.println("[Client] Erro no streaming: " + t.getMessage());
-            }
-
-            @Override
-            public void onCompleted() {}
-        };
+                            return null;
+                        }))
+                .toArray(CompletableFuture[]::new);
+        CompletableFuture.allOf(all).join();
 
-        stub.downloadImage(DownloadImageRequest.newBuilder().setRequestId(requestId).build(), respObs);
+        System.out.printf("[Client] %d imagens processadas (%d falhas) em %.2f segundos.%n",
+                files.size() - failed[0], failed[0], (System.currentTimeMillis() - start) / 1000.0);
     }
 
-    static void downloadWithChannelClose(
-            ImgServerClientServiceGrpc.ImgServerClientServiceStub stub,
-            String requestId,
-            ManagedChannel channelToClose) {
-
-        stub.downloadImage(
-                DownloadImageRequest.newBuilder().setRequestId(requestId).build(),
-                new StreamObserver<DownloadImageChunk>() {
-
-                    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-
-                    @Override
-                    public void onNext(DownloadImageChunk chunk) {
-                        // Igual ao onNext normal, processa dados/status...
-                    }
-
-                    @Override
-                    public void onError(Throwable t) {
-                        System.err.println("[Client] Erro em redirect: " + t.getMessage());
-                        channelToClose.shutdownNow();  // FECHA AQUI
-                    }
-
-                    @Override
-                    public void onCompleted() {
-                        System.out.println("[Client] Download redirect completo!");
-                        channelToClose.shutdownNow();  // ← FECHA AQUI QUANDO TERMINA
-                    }
-                }
-        );
+    static boolean isImage(Path p) {
+        String lower = p.getFileName().toString().toLowerCase();
+        return lower.endsWith(".png") || lower.endsWith(".jpg") || lower.endsWith(".jpeg");
     }
 
+    static String rootMessage(Throwable t) {
+        while (t.getCause() != null) t = t.getCause();
+        return t.getMessage();
+    }
 
     static void debug(String msg) {
         if (DEBUG) System.out.println(msg);
     }
-
-    // === Deduz extensão pela assinatura mágica ===
-    static String guessImageExtension(byte[] data) {
-        if (data.length > 4 && data[0] == (byte) 0x89 && data[1] == 0x50 && data[2] == 0x4E && data[3] == 0x47)
-            return ".png";
-        if (data.length > 2 && data[0] == (byte) 0xFF && data[1] == (byte) 0xD8)
-            return ".jpg";
-        return ".img";
-    }
 }
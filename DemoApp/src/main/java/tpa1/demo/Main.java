@@ -1,12 +1,6 @@
 package tpa1.demo;
 
-import io.grpc.ManagedChannel;
-import io.grpc.netty.shaded.io.grpc.netty.NettyChannelBuilder;
-import io.grpc.stub.StreamObserver;
-import img_client.ImgClient.*;
-import img_client.ImgServerClientServiceGrpc;
-import manager_client.*;
-import manager_client.ManagerClient.*;
+import tpa1.clientlib.ImgClient;
 
 import java.io.*;
 import java.nio.file.*;
@@ -23,6 +17,7 @@ import java.util.concurrent.*;
  *   java -DmanagerIp=35.187.4.84 -DmanagerPort=8000 -Dthreads=5 -Duploads=3 -jar Demo.jar
  *
  * -> Simula 5 clientes, cada um envia 3 vezes a imagem "sample.png" (embutida no JAR)
+ *    (os uploads partilham um ImgClient: no máximo 5 em simultâneo, canais reutilizados)
  */
 public class Main {
 
@@ -83,84 +78,32 @@ public class Main {
             System.out.println("[WARN] Falha ao reforçar DNS resolver: " + t.getMessage());
         }
 
-        ExecutorService pool = Executors.newFixedThreadPool(clients);
-        List<Future<?>> futures = new ArrayList<>();
-
+        // Um único ImgClient: canais partilhados e uploads em virtual threads (até clients em paralelo)
         long start = System.currentTimeMillis();
-
-        for (int i = 1; i <= clients; i++) {
-            int id = i;
-            futures.add(pool.submit(() -> runClient(id, managerIp, managerPort, tmpImage, uploads)));
+        List<CompletableFuture<?>> futures = new ArrayList<>();
+
+        try (ImgClient client = ImgClient.viaManager(managerIp, managerPort, clients)) {
+            // carga em massa: não deve atrasar os utilizadores interativos
+            client.priority(ImgClient.parsePriority(System.getProperty("priority", "batch")));
+            for (int c = 1; c <= clients; c++) {
+                for (int i = 1; i <= uploads; i++) {
+                    int clientId = c, seq = i;
+                    futures.add(client.upload(tmpImage).handle((reqId, err) -> {
+                        if (err != null)
+                            System.err.printf("[Client#%d] Erro upload %d: %s%n", clientId, seq, err.getMessage());
+                        else
+                            System.out.printf("[Client#%d] Upload %d concluído -> requestId=%s%n", clientId, seq, reqId);
+                        return null;
+                    }));
+                }
+            }
+            CompletableFuture.allOf(futures.toArray(CompletableFuture[]::new)).join();
         }
 
-        for (Future<?> f : futures) f.get();
-        pool.shutdown();
-
         long elapsed = System.currentTimeMillis() - start;
         System.out.printf("[Demo] Todos os uploads concluídos em %.2f segundos.%n", elapsed / 1000.0);
     }
 
-    private static void runClient(int clientId, String managerIp, int managerPort, Path imagePath, int uploads) {
-        try {
-            // === 1 - Obter ImgServer do ManagerServer ===
-            ManagedChannel managerCh = NettyChannelBuilder.forAddress(managerIp, managerPort)
-                    .usePlaintext()
-                    .build();
-
-            var mstub = ManagerServerClientServiceGrpc.newBlockingStub(managerCh);
-            GetImgServerResponse sel = mstub.getImgServer(GetImgServerRequest.getDefaultInstance());
-            managerCh.shutdownNow();
-
-            String imgIp = sel.getImgServerIp();
-            int imgPort = sel.getImgServerPort();
-
-            System.out.printf("[Client#%d] Usando ImgServer %s:%d%n", clientId, imgIp, imgPort);
-
-            // === 2 - Canal e stub gRPC ===
-            ManagedChannel ch = NettyChannelBuilder.forAddress(imgIp, imgPort)
-                    .usePlaintext()
-                    .build();
-
-            ImgServerClientServiceGrpc.ImgServerClientServiceStub stub = ImgServerClientServiceGrpc.newStub(ch);
-
-            for (int i = 1; i <= uploads; i++) {
-                String reqId = upload(clientId, stub, imagePath, i);
-                System.out.printf("[Client#%d] Upload %d concluído -> requestId=%s%n", clientId, i, reqId);
-            }
-
-            ch.shutdownNow();
-        } catch (Exception e) {
-            System.err.printf("[Client#%d] ERRO: %s%n", clientId, e.getMessage());
-        }
-    }
-
-    private static String upload(int clientId, ImgServerClientServiceGrpc.ImgServerClientServiceStub stub,
-                                 Path file, int seq) throws Exception {
-        final String[] rid = {null};
-
-        StreamObserver<UploadImageResponse> respObs = new StreamObserver<>() {
-            public void onNext(UploadImageResponse v) { rid[0] = v.getRequestId(); }
-            public void onError(Throwable t) { System.err.printf("[Client#%d] Erro upload %d: %s%n", clientId, seq, t.getMessage()); }
-            public void onCompleted() {}
-        };
-
-        StreamObserver<ImageChunk> reqObs = stub.uploadImage(respObs);
-        try (InputStream in = Files.newInputStream(file)) {
-            byte[] buf = new byte[8192];
-            int n;
-            while ((n = in.read(buf)) != -1) {
-                reqObs.onNext(ImageChunk.newBuilder()
-                        .setData(com.google.protobuf.ByteString.copyFrom(buf, 0, n))
-                        .build());
-            }
-        }
-        reqObs.onCompleted();
-
-        int tries = 0;
-        while (rid[0] == null && tries++ < 100) Thread.sleep(100);
-        return rid[0] == null ? "TIMEOUT" : rid[0];
-    }
-
     /**
      * Extrai o ficheiro sample.png do resources para /tmp/sample-demo.png
      */
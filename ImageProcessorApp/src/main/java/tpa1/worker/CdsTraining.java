@@ -0,0 +1,63 @@
+package tpa1.worker;
+
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Execução de treino para o arquivo AppCDS (e para o agente do native-image):
+ * gera imagens PNG/JPG sintéticas e passa-as pelo mesmo caminho que um job real
+ * (leitura subamostrada, redimensionamento, codificação com várias opções),
+ * para que todas as classes de javax.imageio usadas fiquem no arquivo.
+ *
+ * Uso:
+ *   java -XX:ArchiveClassesAtExit=app.jsa -cp ImageProcessorApp.jar tpa1.worker.CdsTraining
+ */
+public class CdsTraining {
+
+    public static void main(String[] args) throws IOException {
+        Path dir = Files.createTempDirectory("cds-training");
+        try {
+            File[] samples = sampleImages(dir.toFile());
+            for (File in : samples) {
+                String name = in.getName();
+                String ext = name.substring(name.lastIndexOf('.'));
+                Main.resizeImage(in.getPath(), new File(dir.toFile(), "a" + ext).getPath(), 0.5);
+                Main.resizeImage(in.getPath(), new File(dir.toFile(), "b" + ext).getPath(), 0.1,
+                        new ImageEncoder.Options(75, true, true, 6));
+            }
+        } finally {
+            try (var files = Files.list(dir)) {
+                files.forEach(p -> p.toFile().delete());
+            }
+            Files.deleteIfExists(dir);
+        }
+        System.out.println("[Worker] Treino CDS concluído");
+    }
+
+    /** Cria um PNG (com alfa) e um JPG de teste em dir; devolve {png, jpg}. */
+    static File[] sampleImages(File dir) throws IOException {
+        BufferedImage argb = new BufferedImage(640, 480, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = argb.createGraphics();
+        g.setPaint(new GradientPaint(0, 0, new Color(30, 90, 200, 255), 640, 480, new Color(240, 180, 20, 128)));
+        g.fillRect(0, 0, 640, 480);
+        g.setColor(Color.WHITE);
+        g.fillOval(160, 120, 320, 240);
+        g.dispose();
+
+        BufferedImage rgb = new BufferedImage(640, 480, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g2 = rgb.createGraphics();
+        g2.drawImage(argb, 0, 0, null);
+        g2.dispose();
+
+        File png = new File(dir, "sample.png");
+        File jpg = new File(dir, "sample.jpg");
+        ImageIO.write(argb, "png", png);
+        ImageIO.write(rgb, "jpg", jpg);
+        return new File[]{png, jpg};
+    }
+}
@@ -0,0 +1,61 @@
+package tpa1.worker;
+
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Benchmark de codificação: tamanho vs. tempo de CPU para várias opções do ImageEncoder.
+ *
+ * Uso:
+ *   java -cp ImageProcessorApp.jar tpa1.worker.EncodeBench <imagem> [percentagem] [iterações]
+ *
+ * Redimensiona a imagem uma vez e mede apenas a codificação (média após aquecimento).
+ */
+public class EncodeBench {
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Uso: EncodeBench <imagem> [percentagem=0.5] [iterações=20]");
+            System.exit(1);
+        }
+        double pct = args.length > 1 ? Double.parseDouble(args[1]) : 0.5;
+        if (pct > 1) pct = pct / 100.0;
+        int iters = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+
+        BufferedImage src = ImageIO.read(new File(args[0]));
+        int w = Math.max(1, (int) (src.getWidth() * pct));
+        int h = Math.max(1, (int) (src.getHeight() * pct));
+        BufferedImage img = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = img.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BICUBIC);
+        g.drawImage(src, 0, 0, w, h, null);
+        g.dispose();
+
+        record Case(String name, String format, ImageEncoder.Options opt) {}
+        List<Case> cases = List.of(
+                new Case("png deflate 1", "png", new ImageEncoder.Options(85, false, false, 1)),
+                new Case("png deflate 4", "png", new ImageEncoder.Options(85, false, false, 4)),
+                new Case("png deflate 9", "png", new ImageEncoder.Options(85, false, false, 9)),
+                new Case("jpg q75 4:2:0", "jpg", new ImageEncoder.Options(75, false, false, 1)),
+                new Case("jpg q85 4:2:0", "jpg", new ImageEncoder.Options(85, false, false, 1)),
+                new Case("jpg q85 4:4:4", "jpg", new ImageEncoder.Options(85, false, true, 1)),
+                new Case("jpg q85 progressive", "jpg", new ImageEncoder.Options(85, true, false, 1)),
+                new Case("jpg q95 4:4:4", "jpg", new ImageEncoder.Options(95, false, true, 1)));
+
+        System.out.printf("[Bench] %s → %dx%d, %d iterações%n", args[0], w, h, iters);
+        System.out.printf("%-22s %12s %10s%n", "caso", "bytes", "ms/img");
+        File out = File.createTempFile("encode-bench", ".img");
+        out.deleteOnExit();
+        for (Case c : cases) {
+            for (int i = 0; i < 3; i++) ImageEncoder.write(img, c.format(), out, c.opt()); // aquecimento
+            long t0 = System.nanoTime();
+            for (int i = 0; i < iters; i++) ImageEncoder.write(img, c.format(), out, c.opt());
+            double ms = (System.nanoTime() - t0) / 1e6 / iters;
+            System.out.printf("%-22s %12d %10.2f%n", c.name(), out.length(), ms);
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package tpa1.worker;
+
+import org.w3c.dom.NodeList;
+
+import javax.imageio.*;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Escrita do output via ImageWriter/ImageWriteParam (em vez de ImageIO.write),
+ * com controlo de qualidade JPEG, modo progressivo, subamostragem de crominância
+ * e nível de compressão deflate do PNG.
+ */
+public final class ImageEncoder {
+
+    private static final String JPEG_METADATA = "javax_imageio_jpeg_image_1.0";
+
+    /**
+     * Parâmetros de codificação. Os padrões favorecem throughput:
+     * JPEG 85 baseline 4:2:0 e PNG com deflate nível 1.
+     */
+    public record Options(int jpegQuality, boolean progressive, boolean chroma444, int pngLevel) {
+        public static final Options DEFAULT = new Options(85, false, false, 1);
+
+        /** Lê argumentos "chave=valor" (quality, progressive, chroma, pngLevel) sobre os padrões. */
+        public static Options parse(String[] args, int from) {
+            int q = DEFAULT.jpegQuality, lvl = DEFAULT.pngLevel;
+            boolean prog = DEFAULT.progressive, c444 = DEFAULT.chroma444;
+            for (int i = from; i < args.length; i++) {
+                String[] kv = args[i].split("=", 2);
+                if (kv.length != 2) continue;
+                switch (kv[0]) {
+                    case "quality" -> q = Integer.parseInt(kv[1]);
+                    case "progressive" -> prog = Boolean.parseBoolean(kv[1]);
+                    case "chroma" -> c444 = "444".equals(kv[1]);
+                    case "pngLevel" -> lvl = Integer.parseInt(kv[1]);
+                    default -> System.err.println("[Worker] Opção de codificação ignorada: " + args[i]);
+                }
+            }
+            return new Options(Math.max(1, Math.min(100, q)), prog, c444, Math.max(0, Math.min(9, lvl)));
+        }
+    }
+
+    private ImageEncoder() {}
+
+    /** Escreve com o ImageWriter em cache desta thread (ImageIOPool). */
+    public static void write(BufferedImage img, String format, File out, Options opt) throws IOException {
+        ImageWriter writer = ImageIOPool.writer(format);
+        if (writer == null) throw new IOException("Sem ImageWriter para " + format);
+        try {
+            write(writer, img, format, out, opt);
+        } finally {
+            ImageIOPool.release(writer);
+        }
+    }
+
+    static void write(ImageWriter writer, BufferedImage img, String format, File out, Options opt) throws IOException {
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        IIOMetadata metadata = null;
+
+        if ("jpg".equals(format)) {
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(opt.jpegQuality() / 100f);
+            if (opt.progressive()) param.setProgressiveMode(ImageWriteParam.MODE_DEFAULT);
+            if (opt.chroma444()) metadata = fullChroma(writer, img, param);
+        } else if ("png".equals(format) && param.canWriteCompressed()) {
+            // o PNGImageWriter mapeia a qualidade para o nível deflate: nível = 9 * (1 - q)
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(1f - opt.pngLevel() / 9f);
+        }
+
+        out.delete();
+        try (ImageOutputStream ios = ImageIO.createImageOutputStream(out)) {
+            writer.setOutput(ios);
+            writer.write(null, new IIOImage(img, null, metadata), param);
+        } finally {
+            writer.setOutput(null);
+        }
+    }
+
+    /** Metadados JPEG com fatores de amostragem 1x1 em todos os componentes (4:4:4). */
+    private static IIOMetadata fullChroma(ImageWriter writer, BufferedImage img, ImageWriteParam param)
+            throws IOException {
+        IIOMetadata md = writer.getDefaultImageMetadata(new ImageTypeSpecifier(img), param);
+        IIOMetadataNode tree = (IIOMetadataNode) md.getAsTree(JPEG_METADATA);
+        NodeList comps = tree.getElementsByTagName("componentSpec");
+        for (int i = 0; i < comps.getLength(); i++) {
+            IIOMetadataNode c = (IIOMetadataNode) comps.item(i);
+            c.setAttribute("HsamplingFactor", "1");
+            c.setAttribute("VsamplingFactor", "1");
+        }
+        md.setFromTree(JPEG_METADATA, tree);
+        return md;
+    }
+}
@@ -0,0 +1,54 @@
+package tpa1.worker;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriter;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * ImageReader/ImageWriter reutilizados por thread e por formato.
+ * A procura nos SPI do ImageIO (e a criação dos codecs nativos) acontece uma vez
+ * por thread; entre jobs os objetos são apenas reiniciados com reset().
+ */
+public final class ImageIOPool {
+
+    private static final ThreadLocal<Map<String, ImageReader>> READERS = ThreadLocal.withInitial(HashMap::new);
+    private static final ThreadLocal<Map<String, ImageWriter>> WRITERS = ThreadLocal.withInitial(HashMap::new);
+
+    private ImageIOPool() {}
+
+    /** Reader para "png"/"jpg" desta thread (null se não existir). Devolver com release(). */
+    public static ImageReader reader(String format) {
+        return READERS.get().computeIfAbsent(format, f -> {
+            Iterator<ImageReader> it = ImageIO.getImageReadersByFormatName(f);
+            return it.hasNext() ? it.next() : null;
+        });
+    }
+
+    public static ImageWriter writer(String format) {
+        return WRITERS.get().computeIfAbsent(format, f -> {
+            Iterator<ImageWriter> it = ImageIO.getImageWritersByFormatName(f);
+            return it.hasNext() ? it.next() : null;
+        });
+    }
+
+    /** Limpa input/listeners para o próximo job (o reader continua em cache). */
+    public static void release(ImageReader r) {
+        if (r != null) r.reset();
+    }
+
+    public static void release(ImageWriter w) {
+        if (w != null) w.reset();
+    }
+
+    /** Formato pela assinatura (evita percorrer todos os SPI com canDecodeInput). */
+    public static String sniffFormat(byte[] head) {
+        if (head.length >= 4 && (head[0] & 0xFF) == 0x89 && head[1] == 'P' && head[2] == 'N' && head[3] == 'G')
+            return "png";
+        if (head.length >= 2 && (head[0] & 0xFF) == 0xFF && (head[1] & 0xFF) == 0xD8)
+            return "jpg";
+        return null;
+    }
+}
@@ -0,0 +1,69 @@
+package tpa1.worker;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Medições de um job (tempos por etapa em ns, dimensões, bytes e pico de heap), escritas
+ * ao lado do output em "<output>.stats.json" para o ImgServer as juntar ao registo do job.
+ * O pico de heap é o maior heap usado (MemoryMXBean) nas amostras tiradas entre etapas,
+ * incluindo a de depois do resize, com a imagem original e a redimensionada vivas. É o da
+ * JVM inteira (inclui lixo por recolher e, no modo residente ou in-process, os outros jobs
+ * em curso) e não mexe nos contadores de pico dos memory pools, partilhados pela JVM.
+ */
+public final class JobStats {
+
+    public static final String SUFFIX = ".stats.json";
+
+    long decodeNs, resizeNs, encodeNs, totalNs;
+    int inputWidth, inputHeight, outputWidth, outputHeight;
+    int subsampling = 1;
+    long inputBytes, outputBytes, peakHeapBytes;
+
+    private static final MemoryMXBean MEMORY = ManagementFactory.getMemoryMXBean();
+
+    private final long start = System.nanoTime();
+
+    JobStats() {
+        sampleHeap();
+    }
+
+    /** Amostra o heap usado agora (chamar nos pontos em que o job tem mais memória viva). */
+    void sampleHeap() {
+        peakHeapBytes = Math.max(peakHeapBytes, MEMORY.getHeapMemoryUsage().getUsed());
+    }
+
+    /** Fecha as medições: tempo total e última amostra de heap. */
+    void finish() {
+        totalNs = System.nanoTime() - start;
+        sampleHeap();
+    }
+
+    String toJson() {
+        return "{\"decodeNs\":" + decodeNs + ",\"resizeNs\":" + resizeNs + ",\"encodeNs\":" + encodeNs
+                + ",\"totalNs\":" + totalNs
+                + ",\"inputWidth\":" + inputWidth + ",\"inputHeight\":" + inputHeight
+                + ",\"outputWidth\":" + outputWidth + ",\"outputHeight\":" + outputHeight
+                + ",\"subsampling\":" + subsampling
+                + ",\"inputBytes\":" + inputBytes + ",\"outputBytes\":" + outputBytes
+                + ",\"peakHeapBytes\":" + peakHeapBytes + "}";
+    }
+
+    /** Escreve "<outputPath>.stats.json" (via ficheiro temporário: o ImgServer nunca lê metade). */
+    void write(String outputPath) {
+        Path target = Path.of(outputPath + SUFFIX);
+        Path tmp = Path.of(outputPath + SUFFIX + ".tmp");
+        try {
+            Files.writeString(tmp, toJson(), StandardCharsets.UTF_8);
+            Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            // as estatísticas nunca fazem falhar o job
+            System.err.println("[Worker] Não foi possível escrever estatísticas: " + e.getMessage());
+        }
+    }
+}
@@ -1,25 +1,46 @@
 package tpa1.worker;
 
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
 import java.awt.*;
 import java.awt.image.BufferedImage;
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.Iterator;
 
 /**
  * ImageProcessorApp
  * Responsável por redimensionar imagens para a percentagem indicada.
  * Mantém o formato original (PNG ou JPG).
+ * Com --resident processa vários jobs no mesmo processo (um por linha do stdin),
+ * reutilizando readers/writers e buffers de raster entre jobs.
  */
 public class Main {
     public static void main(String[] args) {
+        if (args.length >= 1 && "--resident".equals(args[0])) {
+            resident();
+            return;
+        }
         if (args.length < 3) {
             System.err.println("""
                 Uso incorreto.
                 Correto:
-                  java -jar ImageProcessorApp.jar <imagem_entrada> <imagem_saida> <percentagem_redimensionamento>
+                  java -jar ImageProcessorApp.jar <imagem_entrada> <imagem_saida> <percentagem_redimensionamento> [opções]
+                Opções de codificação (chave=valor):
+                  quality=1..100  progressive=true|false  chroma=420|444  pngLevel=0..9
                 Exemplo:
                   java -jar ImageProcessorApp.jar foto.png reduzida.png 60
+                  java -jar ImageProcessorApp.jar foto.jpg reduzida.jpg 25 quality=75 progressive=true
+                Modo residente (um job por linha no stdin, mesmos argumentos separados por espaços):
+                  java -jar ImageProcessorApp.jar --resident
                 """);
             System.exit(1);
         }
@@ -45,15 +66,54 @@ public class Main {
         System.out.printf("[Worker] Redimensionando imagem '%s' para %.0f%% → '%s'%n",
                 inputPath, pct * 100, outputPath);
 
-        resizeImage(inputPath, outputPath, pct);
+        resizeImage(inputPath, outputPath, pct, ImageEncoder.Options.parse(args, 3));
 
         System.out.println("[Worker] Redimensionamento concluído com sucesso: " + outputPath);
     }
 
+    /** Vários jobs na mesma JVM (worker in-process do ImgServer): reutiliza os rasters entre jobs. */
+    public static void enablePooling() {
+        RasterPool.enable();
+    }
+
+    /**
+     * Worker residente: lê jobs "<entrada> <saida> <percentagem> [opções]" do stdin
+     * e responde "OK <saida>" ou "ERROR <mensagem>" por linha.
+     */
+    static void resident() {
+        System.out.println("[Worker] Modo residente: à espera de jobs no stdin");
+        RasterPool.enable();
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(System.in))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] a = line.trim().split("\\s+");
+                if (a.length < 3) {
+                    if (!a[0].isEmpty()) System.out.println("ERROR argumentos insuficientes");
+                    continue;
+                }
+                try {
+                    double pct = Double.parseDouble(a[2]);
+                    if (pct > 1) pct = pct / 100.0;
+                    resizeImage(a[0], a[1], pct, ImageEncoder.Options.parse(a, 3));
+                    System.out.println(new File(a[1]).exists() ? "OK " + a[1] : "ERROR " + a[0]);
+                } catch (RuntimeException e) {
+                    System.out.println("ERROR " + e.getMessage());
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("[Worker] Erro a ler stdin: " + e.getMessage());
+        }
+    }
+
     /**
      * Redimensiona a imagem mantendo o formato original (PNG ou JPG).
      */
     public static void resizeImage(String inputPath, String outputPath, double percentage) {
+        resizeImage(inputPath, outputPath, percentage, ImageEncoder.Options.DEFAULT);
+    }
+
+    public static void resizeImage(String inputPath, String outputPath, double percentage,
+                                   ImageEncoder.Options encoding) {
         try {
             File inputFile = new File(inputPath);
             if (!inputFile.exists()) {
@@ -61,34 +121,151 @@ public class Main {
                 return;
             }
 
-            BufferedImage originalImage = ImageIO.read(inputFile);
+            JobStats stats = new JobStats();
+            stats.inputBytes = inputFile.length();
+            long t0 = System.nanoTime();
+            BufferedImage originalImage;
+            try (ImageInputStream iis = ImageIO.createImageInputStream(inputFile)) {
+                originalImage = iis == null ? null : readSubsampled(iis, percentage, stats);
+            }
+            stats.decodeNs = System.nanoTime() - t0;
             if (originalImage == null) {
                 System.err.println("[Worker] Erro: ficheiro não é uma imagem válida: " + inputPath);
                 return;
             }
 
-            int newWidth = Math.max(1, (int) (originalImage.getWidth() * percentage));
-            int newHeight = Math.max(1, (int) (originalImage.getHeight() * percentage));
+            writeResized(originalImage, percentage, outputPath, encoding, stats);
+            stats.finish();
+            stats.write(outputPath);
 
-            BufferedImage resizedImg = new BufferedImage(newWidth, newHeight, BufferedImage.TYPE_INT_RGB);
-            Graphics2D g2d = resizedImg.createGraphics();
-            g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BICUBIC);
-            g2d.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
-            g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
-            g2d.drawImage(originalImage, 0, 0, newWidth, newHeight, null);
-            g2d.dispose();
+        } catch (IOException e) {
+            System.err.println("[Worker] Erro ao processar imagem: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Variante em streaming (ImgServer com -DstreamResize): descodifica à medida que os bytes
+     * do upload chegam a in, já subamostrado, e codifica o resultado quando a última linha
+     * chega. options são os argumentos "chave=valor" da linha de comandos.
+     * Ao contrário de resizeImage, as falhas são lançadas (o chamador volta ao caminho normal).
+     */
+    public static void resizeStream(InputStream in, String outputPath, double percentage, String[] options)
+            throws IOException {
+        if (percentage > 1) percentage = percentage / 100.0;
+        JobStats stats = new JobStats();
+        long[] read = {0};
+        InputStream counted = new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b >= 0) read[0]++;
+                return b;
+            }
 
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int n = super.read(b, off, len);
+                if (n > 0) read[0] += n;
+                return n;
+            }
+        };
+        long t0 = System.nanoTime();
+        BufferedImage originalImage;
+        // cache em memória: o input nunca passa pelo disco do lado do worker
+        try (ImageInputStream iis = new MemoryCacheImageInputStream(counted)) {
+            originalImage = readSubsampled(iis, percentage, stats);
+        }
+        stats.decodeNs = System.nanoTime() - t0;
+        stats.inputBytes = read[0];
+        if (originalImage == null) throw new IOException("Input não é uma imagem válida");
+        writeResized(originalImage, percentage, outputPath, ImageEncoder.Options.parse(options, 0), stats);
+        stats.finish();
+        stats.write(outputPath);
+    }
+
+    /** Redimensiona (bicúbico) a imagem descodificada e escreve-a no formato da extensão de saída. */
+    private static void writeResized(BufferedImage originalImage, double percentage, String outputPath,
+                                     ImageEncoder.Options encoding, JobStats stats) throws IOException {
+        // dimensões finais calculadas sobre a imagem original (não sobre a subamostrada)
+        int newWidth = Math.max(1, (int) (stats.inputWidth * percentage));
+        int newHeight = Math.max(1, (int) (stats.inputHeight * percentage));
+        stats.outputWidth = newWidth;
+        stats.outputHeight = newHeight;
+        stats.sampleHeap(); // imagem descodificada
+
+        long t0 = System.nanoTime();
+        BufferedImage resizedImg = RasterPool.intRgb(newWidth, newHeight);
+        Graphics2D g2d = resizedImg.createGraphics();
+        g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BICUBIC);
+        g2d.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+        g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        g2d.drawImage(originalImage, 0, 0, newWidth, newHeight, null);
+        g2d.dispose();
+        long t1 = System.nanoTime();
+        stats.resizeNs = t1 - t0;
+        stats.sampleHeap(); // original e redimensionada vivas: normalmente o pico do job
+
+        RasterPool.release(originalImage);
+
+        try {
             // Detectar extensão de saída
             String format = detectFormat(outputPath);
             if (format == null) {
-                System.err.println("[Worker] Extensão de saída desconhecida (use .png ou .jpg): " + outputPath);
-                return;
+                throw new IOException("Extensão de saída desconhecida (use .png ou .jpg): " + outputPath);
             }
 
-            ImageIO.write(resizedImg, format, new File(outputPath));
+            ImageEncoder.write(resizedImg, format, new File(outputPath), encoding);
+            stats.encodeNs = System.nanoTime() - t1;
+            stats.sampleHeap(); // buffers do encoder
+            stats.outputBytes = new File(outputPath).length();
+        } finally {
+            RasterPool.release(resizedImg);
+        }
+    }
 
-        } catch (IOException e) {
-            System.err.println("[Worker] Erro ao processar imagem: " + e.getMessage());
+    /**
+     * Lê a imagem já subamostrada quando o alvo é muito menor que a origem:
+     * o reader só materializa 1 em cada N píxeis/linhas, pelo que memória e trabalho
+     * de conversão de cor caem com N². Mantém-se pelo menos 2x o tamanho final para
+     * o bicúbico ter margem (ex.: 10% → lê a 20%).
+     * stats recebe largura/altura originais (lidas do cabeçalho) e o passo de subamostragem.
+     * O reader consome iis sequencialmente: com um stream de rede, cada linha é
+     * descodificada (e subamostrada) assim que os seus bytes chegam.
+     */
+    static BufferedImage readSubsampled(ImageInputStream iis, double percentage, JobStats stats) throws IOException {
+        byte[] head = new byte[8];
+        iis.mark();
+        int n = iis.read(head);
+        iis.reset();
+        String format = n > 0 ? ImageIOPool.sniffFormat(head) : null;
+        ImageReader reader = format != null ? ImageIOPool.reader(format) : null;
+        if (reader == null) return null;
+
+        try {
+            reader.setInput(iis, true, true);
+            stats.inputWidth = reader.getWidth(0);
+            stats.inputHeight = reader.getHeight(0);
+
+            ImageReadParam param = reader.getDefaultReadParam();
+            int step = Math.max(1, (int) Math.floor(1.0 / (percentage * 2)));
+            if (step > 1) {
+                param.setSourceSubsampling(step, step, 0, 0);
+                System.out.printf("[Worker] Leitura subamostrada 1/%d (%dx%d)%n", step, stats.inputWidth, stats.inputHeight);
+            }
+            stats.subsampling = step;
+
+            // descodifica para um buffer do pool quando o reader aceita um tipo que o pool sabe criar
+            int dw = (stats.inputWidth + step - 1) / step, dh = (stats.inputHeight + step - 1) / step;
+            for (Iterator<ImageTypeSpecifier> it = reader.getImageTypes(0); it.hasNext(); ) {
+                BufferedImage dest = RasterPool.forType(it.next().getBufferedImageType(), dw, dh);
+                if (dest != null) {
+                    param.setDestination(dest);
+                    break;
+                }
+            }
+            return reader.read(0, param);
+        } finally {
+            ImageIOPool.release(reader);
         }
     }
 
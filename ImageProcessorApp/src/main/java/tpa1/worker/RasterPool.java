@@ -0,0 +1,126 @@
+package tpa1.worker;
+
+import java.awt.Point;
+import java.awt.Transparency;
+import java.awt.color.ColorSpace;
+import java.awt.image.*;
+import java.util.Arrays;
+import java.util.Hashtable;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+
+/**
+ * Pools de buffers de raster (int[] e byte[]) por classes de tamanho e BufferedImages
+ * construídas sobre esses buffers.
+ * Num worker residente (ou in-process) evita alocar dezenas de MB por imagem e as pausas
+ * de GC que isso provoca. Só é ativado nesses modos (enable(), ou -DrasterPool=true): num
+ * container com uma imagem por JVM não há reutilização e o arredondamento à classe de
+ * tamanho seria só memória a mais, por isso as imagens são alocadas à medida.
+ */
+public final class RasterPool {
+
+    private static final int MAX_PER_BUCKET = Integer.parseInt(System.getProperty("rasterPoolPerBucket", "4"));
+    // propriedade que marca as imagens criadas pelo pool: só essas são devolvidas em release()
+    private static final String TAG = "tpa1.rasterPool";
+
+    private static volatile boolean enabled = Boolean.getBoolean("rasterPool");
+
+    private static final Map<Integer, ConcurrentLinkedDeque<int[]>> INTS = new ConcurrentHashMap<>();
+    private static final Map<Integer, ConcurrentLinkedDeque<byte[]>> BYTES = new ConcurrentHashMap<>();
+
+    private RasterPool() {}
+
+    /** Ativa o pool (worker residente ou in-process: várias imagens na mesma JVM). */
+    public static void enable() { enabled = true; }
+
+    public static boolean isEnabled() { return enabled; }
+
+    // =====================================================================================
+    // Buffers
+    // =====================================================================================
+
+    static int[] takeInts(int min) {
+        int[] a = INTS.computeIfAbsent(bucket(min), k -> new ConcurrentLinkedDeque<>()).pollFirst();
+        return a != null ? a : new int[bucket(min)];
+    }
+
+    static byte[] takeBytes(int min) {
+        byte[] a = BYTES.computeIfAbsent(bucket(min), k -> new ConcurrentLinkedDeque<>()).pollFirst();
+        return a != null ? a : new byte[bucket(min)];
+    }
+
+    static void give(int[] a) {
+        ConcurrentLinkedDeque<int[]> q = INTS.computeIfAbsent(a.length, k -> new ConcurrentLinkedDeque<>());
+        if (q.size() < MAX_PER_BUCKET) q.offerFirst(a);
+    }
+
+    static void give(byte[] a) {
+        ConcurrentLinkedDeque<byte[]> q = BYTES.computeIfAbsent(a.length, k -> new ConcurrentLinkedDeque<>());
+        if (q.size() < MAX_PER_BUCKET) q.offerFirst(a);
+    }
+
+    /**
+     * Classe de tamanho de n: 8 classes por potência de 2 (múltiplos de 1/8 da potência
+     * anterior), o que limita o desperdício a 12,5% em vez dos 2x das potências de 2.
+     */
+    static int bucket(int n) {
+        if (n > (1 << 30)) return n; // demasiado grande para bucket: aloca à medida
+        if (n <= 8) return Math.max(1, n);
+        int step = Integer.highestOneBit(n) >> 3;
+        return (n + step - 1) / step * step;
+    }
+
+    // =====================================================================================
+    // BufferedImages sobre buffers do pool
+    // =====================================================================================
+
+    /** Equivalente a new BufferedImage(w, h, TYPE_INT_RGB), a preto. */
+    public static BufferedImage intRgb(int w, int h) {
+        if (!enabled) return new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+        int[] data = takeInts(w * h);
+        Arrays.fill(data, 0, w * h, 0);
+        DataBufferInt db = new DataBufferInt(data, w * h);
+        DirectColorModel cm = new DirectColorModel(24, 0x00FF0000, 0x0000FF00, 0x000000FF, 0);
+        WritableRaster r = Raster.createPackedRaster(db, w, h, w, cm.getMasks(), new Point());
+        return new BufferedImage(cm, r, false, tagged());
+    }
+
+    /** Equivalente a TYPE_3BYTE_BGR (bands=3) ou TYPE_4BYTE_ABGR (bands=4); conteúdo indefinido. */
+    public static BufferedImage byteInterleaved(int w, int h, int bands) {
+        if (!enabled) return new BufferedImage(w, h, bands == 4 ? BufferedImage.TYPE_4BYTE_ABGR : BufferedImage.TYPE_3BYTE_BGR);
+        byte[] data = takeBytes(w * h * bands);
+        DataBufferByte db = new DataBufferByte(data, w * h * bands);
+        int[] offsets = bands == 4 ? new int[]{3, 2, 1, 0} : new int[]{2, 1, 0};
+        WritableRaster r = Raster.createInterleavedRaster(db, w, h, w * bands, bands, offsets, new Point());
+        ColorModel cm = new ComponentColorModel(ColorSpace.getInstance(ColorSpace.CS_sRGB),
+                bands == 4, false, bands == 4 ? Transparency.TRANSLUCENT : Transparency.OPAQUE,
+                DataBuffer.TYPE_BYTE);
+        return new BufferedImage(cm, r, false, tagged());
+    }
+
+    /** Cria (do pool) uma imagem vazia do tipo indicado, ou null se o tipo não for suportado. */
+    public static BufferedImage forType(int type, int w, int h) {
+        if (!enabled) return null; // o reader aloca a imagem à medida
+        return switch (type) {
+            case BufferedImage.TYPE_INT_RGB -> intRgb(w, h);
+            case BufferedImage.TYPE_3BYTE_BGR -> byteInterleaved(w, h, 3);
+            case BufferedImage.TYPE_4BYTE_ABGR -> byteInterleaved(w, h, 4);
+            default -> null;
+        };
+    }
+
+    /** Devolve ao pool o buffer de uma imagem criada por este pool; as outras são ignoradas. */
+    public static void release(BufferedImage img) {
+        if (img == null || img.getProperty(TAG) != Boolean.TRUE) return;
+        DataBuffer db = img.getRaster().getDataBuffer();
+        if (db instanceof DataBufferInt i) give(i.getData());
+        else if (db instanceof DataBufferByte b) give(b.getData());
+    }
+
+    private static Hashtable<String, Object> tagged() {
+        Hashtable<String, Object> props = new Hashtable<>();
+        props.put(TAG, Boolean.TRUE);
+        return props;
+    }
+}
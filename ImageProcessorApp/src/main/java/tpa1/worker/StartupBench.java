@@ -0,0 +1,98 @@
+package tpa1.worker;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Benchmark de arranque do worker: lança um processo por imagem (como o DockerLauncher)
+ * e mede o tempo até à primeira linha de output e até ao fim do processo,
+ * com e sem o arquivo AppCDS (e com o binário nativo, se existir).
+ *
+ * Uso:
+ *   java -cp ImageProcessorApp.jar tpa1.worker.StartupBench <jar> [arquivo.jsa] [binário-nativo]
+ *   (-Druns=N, padrão 10)
+ */
+public class StartupBench {
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Uso: StartupBench <jar> [arquivo.jsa] [binário-nativo]");
+            System.exit(1);
+        }
+        int runs = Integer.parseInt(System.getProperty("runs", "10"));
+        String jar = new File(args[0]).getAbsolutePath();
+        String java = Path.of(System.getProperty("java.home"), "bin", "java").toString();
+
+        Path dir = Files.createTempDirectory("startup-bench");
+        File in = CdsTraining.sampleImages(dir.toFile())[1];
+        String out = new File(dir.toFile(), "out.jpg").getPath();
+        List<String> job = List.of(in.getPath(), out, "50");
+
+        record Case(String name, List<String> cmd) {}
+        List<Case> cases = new ArrayList<>();
+        cases.add(new Case("jvm -Xshare:off", cmd(List.of(java, "-Xshare:off", "-cp", jar, "tpa1.worker.Main"), job)));
+        cases.add(new Case("jvm CDS base", cmd(List.of(java, "-cp", jar, "tpa1.worker.Main"), job)));
+        if (args.length > 1 && new File(args[1]).isFile()) {
+            cases.add(new Case("jvm AppCDS", cmd(List.of(java, "-XX:SharedArchiveFile=" + args[1],
+                    "-cp", jar, "tpa1.worker.Main"), job)));
+            cases.add(new Case("jvm AppCDS+C1+Serial", cmd(List.of(java, "-XX:SharedArchiveFile=" + args[1],
+                    "-XX:TieredStopAtLevel=1", "-XX:+UseSerialGC", "-cp", jar, "tpa1.worker.Main"), job)));
+        }
+        if (args.length > 2 && new File(args[2]).canExecute()) {
+            cases.add(new Case("native-image", cmd(List.of(new File(args[2]).getAbsolutePath()), job)));
+        }
+
+        System.out.printf("[Bench] %d execuções por caso (mediana, ms)%n", runs);
+        System.out.printf("%-22s %14s %12s%n", "caso", "1º output", "total");
+        for (Case c : cases) {
+            run(c.cmd()); // aquecimento da cache de ficheiros do SO
+            long[] first = new long[runs], total = new long[runs];
+            for (int i = 0; i < runs; i++) {
+                long[] t = run(c.cmd());
+                first[i] = t[0];
+                total[i] = t[1];
+            }
+            System.out.printf("%-22s %14.1f %12.1f%n", c.name(), median(first) / 1e6, median(total) / 1e6);
+        }
+
+        try (var files = Files.list(dir)) {
+            files.forEach(p -> p.toFile().delete());
+        }
+        Files.deleteIfExists(dir);
+    }
+
+    private static List<String> cmd(List<String> prefix, List<String> job) {
+        List<String> c = new ArrayList<>(prefix);
+        c.addAll(job);
+        return c;
+    }
+
+    /** Devolve {ns até à primeira linha de stdout, ns até o processo terminar}. */
+    private static long[] run(List<String> cmd) throws IOException, InterruptedException {
+        long t0 = System.nanoTime();
+        Process p = new ProcessBuilder(cmd).redirectErrorStream(true).start();
+        long first = -1;
+        try (BufferedReader r = new BufferedReader(new InputStreamReader(p.getInputStream()))) {
+            while (r.readLine() != null) {
+                if (first < 0) first = System.nanoTime() - t0;
+            }
+        }
+        int exit = p.waitFor();
+        long total = System.nanoTime() - t0;
+        if (exit != 0) throw new IOException("Falhou (" + exit + "): " + String.join(" ", cmd));
+        return new long[]{first, total};
+    }
+
+    private static double median(long[] v) {
+        long[] s = v.clone();
+        Arrays.sort(s);
+        return s.length % 2 == 1 ? s[s.length / 2] : (s[s.length / 2 - 1] + s[s.length / 2]) / 2.0;
+    }
+}
@@ -0,0 +1,25 @@
+package tpa1.clientlib;
+
+import io.grpc.ManagedChannel;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Um ManagedChannel por endpoint, partilhado por todas as chamadas.
+ * Evita um handshake TCP+HTTP/2 por cliente/pedido (o gRPC multiplexa os streams).
+ */
+public class ChannelPool implements AutoCloseable {
+
+    private final Map<Endpoint, ManagedChannel> channels = new ConcurrentHashMap<>();
+
+    public ManagedChannel get(Endpoint e) {
+        return channels.computeIfAbsent(e, k -> GrpcTransport.channel(k.ip(), k.port()).build());
+    }
+
+    @Override
+    public void close() {
+        channels.values().forEach(ManagedChannel::shutdown);
+        channels.clear();
+    }
+}
@@ -0,0 +1,6 @@
+package tpa1.clientlib;
+
+public record Endpoint(String ip, int port) {
+    @Override
+    public String toString() { return ip + ":" + port; }
+}
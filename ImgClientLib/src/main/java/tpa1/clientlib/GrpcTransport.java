@@ -0,0 +1,164 @@
+package tpa1.clientlib;
+
+import io.grpc.ManagedChannelBuilder;
+import io.grpc.ServerBuilder;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.netty.shaded.io.grpc.netty.NettyChannelBuilder;
+import io.grpc.netty.shaded.io.grpc.netty.NettyServerBuilder;
+import io.grpc.netty.shaded.io.netty.channel.EventLoopGroup;
+import io.grpc.netty.shaded.io.netty.channel.ServerChannel;
+import io.grpc.netty.shaded.io.netty.channel.epoll.Epoll;
+import io.grpc.netty.shaded.io.netty.channel.epoll.EpollEventLoopGroup;
+import io.grpc.netty.shaded.io.netty.channel.epoll.EpollServerSocketChannel;
+import io.grpc.netty.shaded.io.netty.channel.epoll.EpollSocketChannel;
+import io.grpc.netty.shaded.io.netty.channel.nio.NioEventLoopGroup;
+import io.grpc.netty.shaded.io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.grpc.netty.shaded.io.netty.channel.socket.nio.NioSocketChannel;
+import io.grpc.netty.shaded.io.netty.util.concurrent.DefaultThreadFactory;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Configuração do transporte gRPC (Netty) partilhada por servidores e canais do processo.
+ * Todos os canais e servidores usam os mesmos event loops e registam o codec "deflate"
+ * do PayloadCompression; o tuning vem de propriedades:
+ *
+ *   -Dgrpc.epoll=true              event loops epoll (se disponíveis), senão NIO
+ *   -Dgrpc.ioThreads=0             threads dos event loops (0 = padrão do Netty, 2 x CPUs)
+ *   -Dgrpc.executor=virtual        executor dos handlers: virtual | fixed | default (cached do gRPC)
+ *   -Dgrpc.executorThreads=N       tamanho do executor fixed (padrão 4 x CPUs)
+ *   -Dgrpc.flowWindow=8388608      janela de controlo de fluxo HTTP/2 por stream (bytes)
+ *   -Dgrpc.maxMessage=16777216     tamanho máximo de mensagem recebida (bytes)
+ *   -Dgrpc.keepAliveSec=30         PING HTTP/2 após N segundos sem tráfego (0 = desligado)
+ *   -Dgrpc.keepAliveTimeoutSec=10  fecha a ligação se o PING não tiver resposta
+ *   -Dgrpc.maxConcurrentStreams=256  streams simultâneos por ligação (servidor)
+ *   -Dgrpc.inProcess=false         servidores e canais in-process (nome "ip:porta"), sem sockets:
+ *                                  permite correr Manager + ImgServers + clientes numa só JVM
+ *
+ * A janela padrão do Netty (1 MB) limita cada stream a ~1 MB por RTT; em ligações
+ * com RTT alto isso, e não a largura de banda, passa a ser o teto das transferências.
+ */
+public final class GrpcTransport {
+
+    public static final boolean EPOLL = Boolean.parseBoolean(System.getProperty("grpc.epoll", "true"))
+            && Epoll.isAvailable();
+    public static final int FLOW_WINDOW = Integer.parseInt(System.getProperty("grpc.flowWindow", String.valueOf(8 << 20)));
+    public static final int MAX_MESSAGE = Integer.parseInt(System.getProperty("grpc.maxMessage", String.valueOf(16 << 20)));
+    public static final long KEEPALIVE_SEC = Long.parseLong(System.getProperty("grpc.keepAliveSec", "30"));
+    public static final long KEEPALIVE_TIMEOUT_SEC = Long.parseLong(System.getProperty("grpc.keepAliveTimeoutSec", "10"));
+    public static final int MAX_CONCURRENT_STREAMS = Integer.parseInt(System.getProperty("grpc.maxConcurrentStreams", "256"));
+
+    private static final int IO_THREADS = Integer.parseInt(System.getProperty("grpc.ioThreads", "0"));
+
+    private static boolean inProcess() {
+        return Boolean.getBoolean("grpc.inProcess");
+    }
+
+    private static EventLoopGroup boss;
+    private static EventLoopGroup workers;
+    private static ExecutorService executor;
+
+    private GrpcTransport() {}
+
+    /**
+     * Servidor gRPC para ip:porta: Netty com event loops, executor, janelas, keepalive e
+     * limite de streams configurados, ou in-process com o nome "ip:porta".
+     */
+    public static ServerBuilder<?> server(String ip, int port) {
+        if (inProcess()) {
+            InProcessServerBuilder b = InProcessServerBuilder.forName(ip + ":" + port)
+                    .compressorRegistry(PayloadCompression.compressors())
+                    .decompressorRegistry(PayloadCompression.decompressors());
+            ExecutorService ex = executor();
+            if (ex != null) b.executor(ex);
+            return b;
+        }
+        NettyServerBuilder b = NettyServerBuilder.forPort(port)
+                .bossEventLoopGroup(boss())
+                .workerEventLoopGroup(workers())
+                .channelType(serverChannelType())
+                .flowControlWindow(FLOW_WINDOW)
+                .maxInboundMessageSize(MAX_MESSAGE)
+                .maxConcurrentCallsPerConnection(MAX_CONCURRENT_STREAMS)
+                .compressorRegistry(PayloadCompression.compressors())
+                .decompressorRegistry(PayloadCompression.decompressors());
+        if (KEEPALIVE_SEC > 0) {
+            b.keepAliveTime(KEEPALIVE_SEC, TimeUnit.SECONDS)
+                    .keepAliveTimeout(KEEPALIVE_TIMEOUT_SEC, TimeUnit.SECONDS)
+                    // aceita os PINGs dos clientes configurados com o mesmo intervalo
+                    .permitKeepAliveTime(Math.max(1, KEEPALIVE_SEC / 2), TimeUnit.SECONDS)
+                    .permitKeepAliveWithoutCalls(true);
+        }
+        ExecutorService ex = executor();
+        if (ex != null) b.executor(ex);
+        return b;
+    }
+
+    /** Canal (plaintext) sobre os event loops partilhados, com a mesma janela e keepalive (ou in-process). */
+    public static ManagedChannelBuilder<?> channel(String ip, int port) {
+        if (inProcess()) {
+            return InProcessChannelBuilder.forName(ip + ":" + port)
+                    .compressorRegistry(PayloadCompression.compressors())
+                    .decompressorRegistry(PayloadCompression.decompressors());
+        }
+        NettyChannelBuilder b = NettyChannelBuilder.forAddress(ip, port)
+                .usePlaintext()
+                .eventLoopGroup(workers())
+                .channelType(EPOLL ? EpollSocketChannel.class : NioSocketChannel.class)
+                .flowControlWindow(FLOW_WINDOW)
+                .maxInboundMessageSize(MAX_MESSAGE)
+                .compressorRegistry(PayloadCompression.compressors())
+                .decompressorRegistry(PayloadCompression.decompressors());
+        if (KEEPALIVE_SEC > 0) {
+            b.keepAliveTime(KEEPALIVE_SEC, TimeUnit.SECONDS)
+                    .keepAliveTimeout(KEEPALIVE_TIMEOUT_SEC, TimeUnit.SECONDS)
+                    .keepAliveWithoutCalls(true);
+        }
+        return b;
+    }
+
+    /** Descrição da configuração ativa (para o log de arranque). */
+    public static String describe() {
+        if (inProcess()) return "transporte=in-process, executor=" + System.getProperty("grpc.executor", "virtual");
+        return String.format("transporte=%s, executor=%s, janela=%dKB, maxMsg=%dKB, keepalive=%ds, streams=%d",
+                EPOLL ? "epoll" : "nio", System.getProperty("grpc.executor", "virtual"),
+                FLOW_WINDOW >> 10, MAX_MESSAGE >> 10, KEEPALIVE_SEC, MAX_CONCURRENT_STREAMS);
+    }
+
+    private static Class<? extends ServerChannel> serverChannelType() {
+        return EPOLL ? EpollServerSocketChannel.class : NioServerSocketChannel.class;
+    }
+
+    private static synchronized EventLoopGroup boss() {
+        if (boss == null) boss = newGroup(1, "grpc-boss");
+        return boss;
+    }
+
+    private static synchronized EventLoopGroup workers() {
+        if (workers == null) workers = newGroup(IO_THREADS, "grpc-io");
+        return workers;
+    }
+
+    private static EventLoopGroup newGroup(int threads, String name) {
+        DefaultThreadFactory tf = new DefaultThreadFactory(name, true);
+        return EPOLL ? new EpollEventLoopGroup(threads, tf) : new NioEventLoopGroup(threads, tf);
+    }
+
+    /** Executor dos handlers (null = executor cached por omissão do gRPC). */
+    private static synchronized ExecutorService executor() {
+        if (executor != null) return executor;
+        switch (System.getProperty("grpc.executor", "virtual")) {
+            case "virtual" -> executor = Executors.newThreadPerTaskExecutor(
+                    Thread.ofVirtual().name("grpc-handler-", 0).factory());
+            case "fixed" -> executor = Executors.newFixedThreadPool(
+                    Integer.parseInt(System.getProperty("grpc.executorThreads",
+                            String.valueOf(4 * Runtime.getRuntime().availableProcessors()))),
+                    Thread.ofPlatform().name("grpc-handler-", 0).daemon(true).factory());
+            default -> { }
+        }
+        return executor;
+    }
+}
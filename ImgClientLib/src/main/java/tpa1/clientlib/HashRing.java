@@ -0,0 +1,54 @@
+package tpa1.clientlib;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Anel de hashing consistente sobre os ImgServers registados.
+ * Cada servidor ocupa vnodes posições no anel; um requestId pertence ao primeiro
+ * servidor a seguir ao seu hash. Quando um servidor entra ou sai, só mudam de dono
+ * as chaves dos seus próprios segmentos (~1/N do total).
+ * Clientes e ImgServers constroem o anel a partir da mesma lista do Manager,
+ * pelo que calculam o mesmo dono sem consultar o Redis.
+ */
+public final class HashRing {
+
+    public static final int DEFAULT_VNODES = Integer.parseInt(System.getProperty("ringVnodes", "128"));
+
+    private final TreeMap<Long, Endpoint> ring = new TreeMap<>();
+
+    public HashRing(Collection<Endpoint> servers) {
+        this(servers, DEFAULT_VNODES);
+    }
+
+    public HashRing(Collection<Endpoint> servers, int vnodes) {
+        for (Endpoint e : servers) {
+            for (int v = 0; v < vnodes; v++) ring.put(hash(e + "#" + v), e);
+        }
+    }
+
+    public boolean isEmpty() { return ring.isEmpty(); }
+
+    /** Servidor dono da chave (null se o anel estiver vazio). */
+    public Endpoint owner(String key) {
+        if (ring.isEmpty()) return null;
+        Map.Entry<Long, Endpoint> e = ring.ceilingEntry(hash(key));
+        return (e != null ? e : ring.firstEntry()).getValue();
+    }
+
+    /** Primeiros 8 bytes do MD5: bem distribuído e igual em todas as JVMs. */
+    static long hash(String s) {
+        try {
+            byte[] d = MessageDigest.getInstance("MD5").digest(s.getBytes(StandardCharsets.UTF_8));
+            long h = 0;
+            for (int i = 0; i < 8; i++) h = (h << 8) | (d[i] & 0xFF);
+            return h;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,354 @@
+package tpa1.clientlib;
+
+import com.google.protobuf.ByteString;
+import img_client.ImgClient.*;
+import img_client.ImgServerClientServiceGrpc;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
+import io.grpc.stub.StreamObserver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+/**
+ * Cliente partilhado pelo ClientApp e pelo DemoApp:
+ *  - Uploads/downloads assíncronos (CompletableFuture) em virtual threads.
+ *  - Concorrência limitada por um semáforo (maxConcurrency transferências em curso;
+ *    downloads à espera de PROCESSING não contam).
+ *  - Um canal por ImgServer (ChannelPool) e um único canal para o Manager.
+ *  - Escolha do ImgServer local (ServerDirectory), sem ida ao Manager por pedido enquanto
+ *    o cliente tiver poucos jobs pendentes; acima disso o Manager aplica a quota.
+ *  - Uploads retomáveis (sessão + CRC32) e downloads retomáveis por offset.
+ *  - Cada upload leva o clientId e a prioridade (fair-share e quotas nos ImgServers);
+ *    padrões: -DclientId (hostname-pid) e -Dpriority=interactive|normal|batch.
+ */
+public class ImgClient implements AutoCloseable {
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private final ChannelPool pool = new ChannelPool();
+    private final ExecutorService exec = Executors.newVirtualThreadPerTaskExecutor();
+    private final Semaphore permits;
+    private final ServerDirectory directory; // null em modo direto
+    private final Endpoint direct;           // null em modo Manager
+    private final int maxRetries;
+    private final Map<String, Endpoint> owners = new ConcurrentHashMap<>(); // requestId → ImgServer do upload
+    private final AtomicInteger uploading = new AtomicInteger(); // uploads em curso (ainda sem requestId)
+    private volatile String clientId = System.getProperty("clientId", defaultClientId());
+    private volatile Priority priority = parsePriority(System.getProperty("priority", "normal"));
+
+    private ImgClient(Endpoint manager, Endpoint direct, int maxConcurrency) {
+        this.directory = manager == null ? null : new ServerDirectory(pool.get(manager));
+        this.direct = direct;
+        this.permits = new Semaphore(maxConcurrency);
+        this.maxRetries = Integer.parseInt(System.getProperty("retries", "5"));
+        if (directory != null) directory.clientId(clientId);
+    }
+
+    /** ImgServers anunciados pelo Manager (lista observada, balanceamento local). */
+    public static ImgClient viaManager(String managerIp, int managerPort, int maxConcurrency) {
+        return new ImgClient(new Endpoint(managerIp, managerPort), null, maxConcurrency);
+    }
+
+    /** Todos os pedidos para um ImgServer fixo (salta o Manager). */
+    public static ImgClient direct(String imgIp, int imgPort, int maxConcurrency) {
+        return new ImgClient(null, new Endpoint(imgIp, imgPort), maxConcurrency);
+    }
+
+    /** Identidade usada nos uploads seguintes (ex.: BATCH para processamento em massa). */
+    public ImgClient identity(String clientId, Priority priority) {
+        this.clientId = clientId;
+        this.priority = priority;
+        if (directory != null) directory.clientId(clientId);
+        return this;
+    }
+
+    /** Classe de prioridade dos uploads seguintes, mantendo o clientId. */
+    public ImgClient priority(Priority priority) {
+        this.priority = priority;
+        return this;
+    }
+
+    public static Priority parsePriority(String s) {
+        return switch (s.strip().toLowerCase()) {
+            case "interactive" -> Priority.INTERACTIVE;
+            case "batch" -> Priority.BATCH;
+            default -> Priority.NORMAL;
+        };
+    }
+
+    private static String defaultClientId() {
+        String host;
+        try {
+            host = java.net.InetAddress.getLocalHost().getHostName();
+        } catch (IOException e) {
+            host = "client";
+        }
+        return host + "-" + ProcessHandle.current().pid();
+    }
+
+    // =====================================================================================
+    // API assíncrona
+    // =====================================================================================
+
+    /** Envia o ficheiro e completa com o requestId atribuído pelo ImgServer. */
+    public CompletableFuture<String> upload(Path file) {
+        return upload(file, EncodeOptions.getDefaultInstance());
+    }
+
+    /** Upload com parâmetros de codificação do resultado (qualidade JPEG, nível PNG, ...). */
+    public CompletableFuture<String> upload(Path file, EncodeOptions options) {
+        return submit(() -> uploadBlocking(file, options));
+    }
+
+    /**
+     * Espera pelo processamento e grava "download-<requestId>.<ext>" em dir.
+     * Só cada transferência ocupa uma das maxConcurrency permissões: a espera por
+     * PROCESSING não bloqueia novos uploads.
+     */
+    public CompletableFuture<Path> download(String requestId, Path dir) {
+        return submit(() -> downloadBlocking(requestId, dir), false);
+    }
+
+    /** Upload seguido de download do resultado. */
+    public CompletableFuture<Path> process(Path file, Path dir) {
+        return process(file, EncodeOptions.getDefaultInstance(), dir);
+    }
+
+    public CompletableFuture<Path> process(Path file, EncodeOptions options, Path dir) {
+        return upload(file, options).thenCompose(rid -> download(rid, dir));
+    }
+
+    /** Tempos por etapa e recursos medidos pelo worker (hasStats=false enquanto o job não termina). */
+    public CompletableFuture<JobStatsResponse> stats(String requestId) {
+        return submit(() -> ImgServerClientServiceGrpc.newBlockingStub(pool.get(imgServer()))
+                .getJobStats(JobStatsRequest.newBuilder().setRequestId(requestId).build()));
+    }
+
+    private <T> CompletableFuture<T> submit(Callable<T> task) {
+        return submit(task, true);
+    }
+
+    private <T> CompletableFuture<T> submit(Callable<T> task, boolean limited) {
+        CompletableFuture<T> f = new CompletableFuture<>();
+        exec.execute(() -> {
+            try {
+                if (limited) permits.acquire();
+                try {
+                    f.complete(task.call());
+                } finally {
+                    if (limited) permits.release();
+                }
+            } catch (Throwable t) {
+                f.completeExceptionally(t);
+            }
+        });
+        return f;
+    }
+
+    // =====================================================================================
+    // Endpoints
+    // =====================================================================================
+
+    public Endpoint imgServer() throws InterruptedException {
+        return direct != null ? direct : directory.pick(pending());
+    }
+
+    /** Jobs deste cliente ainda por recolher: uploads em curso + enviados e não descarregados. */
+    private int pending() {
+        return uploading.get() + owners.size();
+    }
+
+    // =====================================================================================
+    // Upload retomável: sessão com offset confirmado e CRC32 por chunk
+    // =====================================================================================
+    private String uploadBlocking(Path file, EncodeOptions options) throws Exception {
+        uploading.incrementAndGet();
+        try {
+            return uploadResumable(file, options);
+        } finally {
+            uploading.decrementAndGet();
+        }
+    }
+
+    private String uploadResumable(Path file, EncodeOptions options) throws Exception {
+        Endpoint ep = imgServer();
+        var stub = ImgServerClientServiceGrpc.newStub(pool.get(ep));
+        // comprime só se o ficheiro compensar (nunca JPEG); o servidor aceita gzip e deflate
+        String codec = PayloadCompression.forFile(file);
+        if (!PayloadCompression.NONE.equals(codec)) stub = stub.withCompression(codec);
+        var control = ImgServerClientServiceGrpc.newBlockingStub(pool.get(ep));
+        String sessionId = UUID.randomUUID().toString();
+        long offset = 0;
+        Throwable last = null;
+
+        for (int attempt = 0; attempt <= maxRetries; attempt++) {
+            if (attempt > 0) {
+                // pergunta ao servidor até onde o ficheiro ficou gravado
+                try {
+                    UploadStatusResponse st = control.withDeadlineAfter(10, TimeUnit.SECONDS).getUploadStatus(
+                            UploadStatusRequest.newBuilder().setSessionId(sessionId).build());
+                    if (!st.getRequestId().isEmpty()) return owned(st.getRequestId(), ep); // já tinha sido concluído
+                    offset = st.getCommittedOffset(); // sessão desconhecida → 0
+                } catch (StatusRuntimeException e) {
+                    last = e;
+                    if (e.getStatus().getCode() == Status.Code.NOT_FOUND) {
+                        offset = 0; // o servidor perdeu a sessão: recomeça do início
+                    } else {
+                        // servidor ainda em baixo: mantém o último offset conhecido e volta a tentar
+                        System.err.println("[Client] Estado do upload de " + file + " indisponível: " + e.getMessage());
+                        Thread.sleep(500L * (attempt + 1));
+                        continue;
+                    }
+                }
+                System.out.printf("[Client] A retomar upload de %s no byte %d (tentativa %d)%n", file, offset, attempt);
+            }
+
+            CompletableFuture<String> result = new CompletableFuture<>();
+            Object ready = new Object();
+            StreamObserver<ImageChunk> reqObs = stub.uploadImage(new ClientResponseObserver<ImageChunk, UploadImageResponse>() {
+                String rid;
+                public void beforeStart(ClientCallStreamObserver<ImageChunk> call) {
+                    call.setOnReadyHandler(() -> { synchronized (ready) { ready.notifyAll(); } });
+                }
+                public void onNext(UploadImageResponse v) { rid = v.getRequestId(); }
+                public void onError(Throwable t) { result.completeExceptionally(t); }
+                public void onCompleted() { result.complete(rid); }
+            });
+            ClientCallStreamObserver<ImageChunk> call = (ClientCallStreamObserver<ImageChunk>) reqObs;
+
+            try (InputStream in = Files.newInputStream(file)) {
+                in.skipNBytes(offset);
+                byte[] buf = new byte[CHUNK_SIZE];
+                CRC32 crc = new CRC32();
+                long pos = offset;
+                int n;
+                while (!result.isDone() && (n = in.read(buf)) != -1) {
+                    crc.reset();
+                    crc.update(buf, 0, n);
+                    ImageChunk.Builder chunk = ImageChunk.newBuilder()
+                            .setData(ByteString.copyFrom(buf, 0, n))
+                            .setSessionId(sessionId)
+                            .setOffset(pos)
+                            .setCrc32((int) crc.getValue());
+                    if (pos == offset) { // só no 1º chunk de cada tentativa
+                        chunk.setOptions(options).setClientId(clientId).setPriority(priority);
+                    }
+                    // controlo de fluxo: só envia quando o transporte aceita mais, para que cada
+                    // upload em curso tenha só alguns chunks em buffer em vez do ficheiro inteiro
+                    synchronized (ready) {
+                        while (!call.isReady() && !result.isDone()) ready.wait(100);
+                    }
+                    if (result.isDone()) break;
+                    reqObs.onNext(chunk.build());
+                    pos += n;
+                }
+            } catch (IOException e) {
+                reqObs.onError(e);
+                throw e;
+            }
+            reqObs.onCompleted();
+
+            try {
+                String rid = result.get(30, TimeUnit.SECONDS);
+                if (rid == null || "ERROR".equals(rid)) throw new IOException("Upload rejeitado: " + file);
+                return owned(rid, ep);
+            } catch (ExecutionException | TimeoutException e) {
+                last = e instanceof ExecutionException ? e.getCause() : e;
+                System.err.println("[Client] Erro no upload de " + file + ": " + last.getMessage());
+                Thread.sleep(500L * (attempt + 1));
+            }
+        }
+        throw new IOException("Upload falhou após " + maxRetries + " tentativas: " + file, last);
+    }
+
+    private String owned(String requestId, Endpoint ep) {
+        owners.put(requestId, ep);
+        return requestId;
+    }
+
+    // =====================================================================================
+    // Download com redirect, espera por PROCESSING e retoma por offset
+    // =====================================================================================
+    private Path downloadBlocking(String requestId, Path dir) throws Exception {
+        // dono conhecido (upload nesta sessão) → modo direto → dono calculado no anel
+        Endpoint ep = owners.getOrDefault(requestId, direct);
+        if (ep == null) ep = directory.owner(requestId);
+        if (ep == null) ep = imgServer();
+        long pollMs = Long.parseLong(System.getProperty("pollMs", "500"));
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        int retries = 0;
+
+        while (true) {
+            var stub = ImgServerClientServiceGrpc.newBlockingStub(pool.get(ep));
+            DownloadImageStatus st = null;
+            StatusRuntimeException failure = null;
+            permits.acquire(); // só durante a chamada: a espera (sleep) fica fora
+            try {
+                Iterator<DownloadImageChunk> it = stub.downloadImage(DownloadImageRequest.newBuilder()
+                        .setRequestId(requestId)
+                        .setOffset(buffer.size())
+                        .build());
+                while (it.hasNext()) {
+                    DownloadImageChunk c = it.next();
+                    if (c.hasData()) c.getData().writeTo(buffer);
+                    else st = c.getStatus();
+                }
+            } catch (StatusRuntimeException e) {
+                failure = e;
+            } finally {
+                permits.release();
+            }
+            if (failure != null) {
+                if (retries++ >= maxRetries) throw failure;
+                // retoma a partir do último byte recebido
+                Thread.sleep(500L * retries);
+                continue;
+            }
+
+            if (st == null) throw new IOException("Stream terminou sem estado (" + requestId + ")");
+            switch (st.getStatus()) {
+                case "REDIRECT" -> ep = new Endpoint(st.getRedirectIp(), st.getRedirectPort());
+                case "PROCESSING" -> Thread.sleep(pollMs);
+                case "DONE" -> {
+                    if (st.getTotalSize() > 0 && st.getTotalSize() != buffer.size())
+                        throw new IOException("Download incompleto (" + buffer.size() + " de " + st.getTotalSize() + " bytes)");
+                    byte[] data = buffer.toByteArray();
+                    Files.createDirectories(dir);
+                    Path out = dir.resolve("download-" + requestId + guessImageExtension(data));
+                    Files.write(out, data);
+                    owners.remove(requestId);
+                    return out;
+                }
+                default -> throw new IOException("Erro no download de " + requestId + ": " + st.getMessage());
+            }
+        }
+    }
+
+    // === Deduz extensão pela assinatura mágica ===
+    public static String guessImageExtension(byte[] data) {
+        if (data.length > 4 && data[0] == (byte) 0x89 && data[1] == 0x50 && data[2] == 0x4E && data[3] == 0x47)
+            return ".png";
+        if (data.length > 2 && data[0] == (byte) 0xFF && data[1] == (byte) 0xD8)
+            return ".jpg";
+        return ".img";
+    }
+
+    @Override
+    public void close() {
+        exec.shutdown();
+        if (directory != null) directory.close();
+        pool.close();
+    }
+}
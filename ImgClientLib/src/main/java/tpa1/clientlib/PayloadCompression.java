@@ -0,0 +1,130 @@
+package tpa1.clientlib;
+
+import io.grpc.Codec;
+import io.grpc.CompressorRegistry;
+import io.grpc.DecompressorRegistry;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Escolha da compressão gRPC por chamada, a partir do conteúdo do ficheiro transferido:
+ *  - JPEG já é comprimido: nunca se comprime (só gastava CPU);
+ *  - restantes formatos (PNG, BMP, ...): comprime-se uma amostra (início, meio e fim)
+ *    com deflate nível 1 e só se ativa a compressão se a poupança estimada compensar.
+ *
+ *   -Dcompression=auto|deflate|gzip|none   (padrão auto)
+ *   -Dcompression.codec=deflate            codec usado quando auto decide comprimir
+ *   -Dcompression.level=1                  nível do codec "deflate" (1 = o mais rápido)
+ *   -Dcompression.minSaving=0.10           poupança mínima estimada para comprimir
+ *
+ * O codec "deflate" (zlib, nível configurável) é registado em clientes e servidores
+ * pelo GrpcTransport; o "gzip" do gRPC usa o nível 6, bastante mais lento.
+ */
+public final class PayloadCompression {
+
+    public static final String NONE = "identity";
+
+    private static final String MODE = System.getProperty("compression", "auto");
+    private static final String CODEC = System.getProperty("compression.codec", "deflate");
+    private static final int LEVEL = Integer.parseInt(System.getProperty("compression.level", "1"));
+    private static final double MIN_SAVING = Double.parseDouble(System.getProperty("compression.minSaving", "0.10"));
+
+    private static final int SAMPLE = 16 * 1024; // bytes por janela de amostragem
+    private static final int MIN_SIZE = 4 * 1024; // abaixo disto o cabeçalho da compressão não compensa
+
+    private PayloadCompression() {}
+
+    /** Codec deflate (formato zlib) com nível configurável. */
+    public static final Codec FAST_DEFLATE = new Codec() {
+        @Override
+        public String getMessageEncoding() { return "deflate"; }
+
+        @Override
+        public OutputStream compress(OutputStream os) {
+            Deflater d = new Deflater(LEVEL);
+            return new DeflaterOutputStream(os, d) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        d.end();
+                    }
+                }
+            };
+        }
+
+        @Override
+        public InputStream decompress(InputStream is) {
+            return new InflaterInputStream(is);
+        }
+    };
+
+    static CompressorRegistry compressors() {
+        CompressorRegistry r = CompressorRegistry.newEmptyInstance();
+        r.register(new Codec.Gzip());
+        r.register(FAST_DEFLATE);
+        return r;
+    }
+
+    static DecompressorRegistry decompressors() {
+        return DecompressorRegistry.getDefaultInstance().with(FAST_DEFLATE, true);
+    }
+
+    /** Codec a usar para transferir o ficheiro (NONE = sem compressão). */
+    public static String forFile(Path file) {
+        switch (MODE) {
+            case "none": return NONE;
+            case "gzip": case "deflate": return MODE;
+            default: break;
+        }
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = ch.size();
+            if (size < MIN_SIZE) return NONE;
+
+            ByteBuffer head = ByteBuffer.allocate((int) Math.min(SAMPLE, size));
+            ch.read(head, 0);
+            if (isJpeg(head.array())) return NONE;
+
+            double est = estimateRatio(ch, size, head);
+            return est <= 1.0 - MIN_SAVING ? CODEC : NONE;
+        } catch (IOException e) {
+            return NONE;
+        }
+    }
+
+    static boolean isJpeg(byte[] b) {
+        return b.length > 2 && (b[0] & 0xFF) == 0xFF && (b[1] & 0xFF) == 0xD8;
+    }
+
+    /** Razão comprimido/original de três janelas do ficheiro (1.0 = incompressível). */
+    private static double estimateRatio(FileChannel ch, long size, ByteBuffer head) throws IOException {
+        Deflater d = new Deflater(Deflater.BEST_SPEED);
+        try {
+            byte[] out = new byte[SAMPLE + 64];
+            long raw = 0, packed = 0;
+            long[] offsets = size > 3L * SAMPLE ? new long[]{0, size / 2, size - SAMPLE} : new long[]{0};
+            for (long off : offsets) {
+                ByteBuffer b = off == 0 ? head : ByteBuffer.allocate(SAMPLE);
+                if (off != 0) ch.read(b, off);
+                d.reset();
+                d.setInput(b.array(), 0, b.position());
+                d.finish();
+                while (!d.finished()) packed += d.deflate(out);
+                raw += b.position();
+            }
+            return raw == 0 ? 1.0 : (double) packed / raw;
+        } finally {
+            d.end();
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package tpa1.clientlib;
+
+import io.grpc.ManagedChannel;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
+import manager_client.ManagerClient.GetImgServerRequest;
+import manager_client.ManagerClient.GetImgServerResponse;
+import manager_client.ManagerClient.ImgServerEntry;
+import manager_client.ManagerClient.ImgServerList;
+import manager_client.ManagerClient.ListImgServersRequest;
+import manager_client.ManagerServerClientServiceGrpc;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Vista local dos ImgServers registados no Manager:
+ *  - Subscreve ListImgServers uma vez e recebe as alterações por push.
+ *  - Escolhe o ImgServer localmente (smooth weighted round-robin), sem RPC ao Manager.
+ *  - Com -DquotaCheckAt (8) ou mais jobs pendentes do cliente pergunta ao Manager
+ *    (GetImgServer com clientId): abaixo disso a quota do cliente não pode estar esgotada;
+ *    acima, o Manager escolhe o nó onde o cliente corre menos jobs e pode pedir para abrandar.
+ *  - Mantém um anel de hashing consistente para calcular o dono de cada requestId.
+ *  - Se o Manager não suportar o watch, volta a GetImgServer por pedido.
+ */
+public class ServerDirectory implements AutoCloseable {
+
+    private record Slot(Endpoint endpoint, int weight) {}
+
+    // jobs pendentes do cliente a partir dos quais a escolha passa pelo Manager (0 = sempre local)
+    private static final int QUOTA_CHECK_AT = Integer.parseInt(System.getProperty("quotaCheckAt", "8"));
+
+    private final ManagedChannel managerChannel;
+    private final CountDownLatch firstList = new CountDownLatch(1);
+    private final ScheduledExecutorService retry = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "img-directory");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private List<Slot> slots = List.of();
+    private int[] current = new int[0]; // pesos correntes do smooth WRR
+    private volatile HashRing ring = new HashRing(List.of());
+    private volatile boolean watchUnsupported;
+    private volatile boolean closed;
+    private volatile ClientCallStreamObserver<ListImgServersRequest> call;
+    private volatile String clientId = "";
+
+    public ServerDirectory(ManagedChannel managerChannel) {
+        this.managerChannel = managerChannel;
+        watch();
+    }
+
+    /** clientId enviado ao Manager no GetImgServer (quota por cliente). */
+    public void clientId(String clientId) {
+        this.clientId = clientId;
+    }
+
+    private void watch() {
+        if (closed) return;
+        ManagerServerClientServiceGrpc.newStub(managerChannel).listImgServers(
+                ListImgServersRequest.getDefaultInstance(), new ClientResponseObserver<ListImgServersRequest, ImgServerList>() {
+                    @Override
+                    public void beforeStart(ClientCallStreamObserver<ListImgServersRequest> requestStream) {
+                        call = requestStream;
+                    }
+
+                    @Override
+                    public void onNext(ImgServerList list) {
+                        update(list);
+                    }
+
+                    @Override
+                    public void onError(Throwable t) {
+                        if (closed) return;
+                        if (Status.fromThrowable(t).getCode() == Status.Code.UNIMPLEMENTED) {
+                            watchUnsupported = true; // Manager antigo
+                            firstList.countDown();
+                            return;
+                        }
+                        // mantém a última lista conhecida e volta a subscrever
+                        retry.schedule(ServerDirectory.this::watch, 1, TimeUnit.SECONDS);
+                    }
+
+                    @Override
+                    public void onCompleted() {
+                        retry.schedule(ServerDirectory.this::watch, 1, TimeUnit.SECONDS);
+                    }
+                });
+    }
+
+    private synchronized void update(ImgServerList list) {
+        List<Slot> next = new ArrayList<>();
+        for (ImgServerEntry e : list.getServersList()) {
+            next.add(new Slot(new Endpoint(e.getImgServerIp(), e.getImgServerPort()), Math.max(1, e.getWeight())));
+        }
+        slots = next;
+        current = new int[next.size()];
+        ring = new HashRing(next.stream().map(Slot::endpoint).toList());
+        if (!next.isEmpty()) firstList.countDown();
+    }
+
+    /** Próximo ImgServer segundo os pesos anunciados pelo Manager. */
+    public Endpoint pick() throws InterruptedException {
+        return pick(0);
+    }
+
+    /**
+     * Próximo ImgServer para um cliente com pending jobs por terminar: escolha local
+     * enquanto a quota não pode estar em causa, senão a do Manager (quota-aware).
+     */
+    public Endpoint pick(int pending) throws InterruptedException {
+        if (!watchUnsupported) firstList.await(10, TimeUnit.SECONDS);
+        if (QUOTA_CHECK_AT > 0 && pending >= QUOTA_CHECK_AT && !clientId.isEmpty() && !watchUnsupported) {
+            try {
+                return askManager();
+            } catch (StatusRuntimeException e) {
+                // Manager indisponível: a lista local continua válida
+            }
+        }
+        synchronized (this) {
+            if (!slots.isEmpty()) {
+                int total = 0, best = 0;
+                for (int i = 0; i < slots.size(); i++) {
+                    current[i] += slots.get(i).weight();
+                    total += slots.get(i).weight();
+                    if (current[i] > current[best]) best = i;
+                }
+                current[best] -= total;
+                return slots.get(best).endpoint();
+            }
+        }
+        // sem lista (watch indisponível): pergunta ao Manager
+        return askManager();
+    }
+
+    private Endpoint askManager() throws InterruptedException {
+        GetImgServerResponse sel = ManagerServerClientServiceGrpc.newBlockingStub(managerChannel)
+                .withDeadlineAfter(10, TimeUnit.SECONDS)
+                .getImgServer(GetImgServerRequest.newBuilder().setClientId(clientId).build());
+        // acima da quota: o Manager pede para abrandar antes de enviar mais jobs
+        if (sel.getRetryAfterMs() > 0) Thread.sleep(sel.getRetryAfterMs());
+        return new Endpoint(sel.getImgServerIp(), sel.getImgServerPort());
+    }
+
+    /** Dono de requestId no anel (null enquanto não houver lista). */
+    public Endpoint owner(String requestId) {
+        return ring.owner(requestId);
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        retry.shutdownNow();
+        if (call != null) call.cancel("ServerDirectory fechado", null);
+    }
+}
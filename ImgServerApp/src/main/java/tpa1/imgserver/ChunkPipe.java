@@ -0,0 +1,113 @@
+package tpa1.imgserver;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pipe limitado entre o upload (escritor) e um worker em streaming (leitor).
+ * Ao contrário de PipedInputStream não exige que o escritor seja sempre a mesma thread
+ * viva (os onNext do gRPC correm em threads diferentes). Com o buffer cheio o escritor
+ * bloqueia, o que trava o upload pelo controlo de fluxo do gRPC; se o leitor fechar
+ * (terminou ou falhou) as escritas seguintes são descartadas.
+ */
+public final class ChunkPipe extends OutputStream {
+
+    private static final byte[] EOF = new byte[0];
+
+    private final BlockingQueue<byte[]> chunks;
+    private volatile boolean readerClosed;
+    private volatile boolean failed;
+    private boolean writerClosed;
+
+    /** capacity = nº de chunks em trânsito antes de o escritor bloquear. */
+    public ChunkPipe(int capacity) {
+        this.chunks = new ArrayBlockingQueue<>(capacity);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (len == 0 || writerClosed) return;
+        put(Arrays.copyOfRange(b, off, off + len));
+    }
+
+    /** Fim do input: o leitor recebe EOF depois dos bytes pendentes. */
+    @Override
+    public void close() throws IOException {
+        if (writerClosed) return;
+        writerClosed = true;
+        put(EOF);
+    }
+
+    /** Upload falhou: o leitor recebe IOException em vez de um input truncado. */
+    public void abort() {
+        failed = true;
+        writerClosed = true;
+        chunks.clear();
+        chunks.offer(EOF);
+    }
+
+    private void put(byte[] chunk) throws IOException {
+        try {
+            while (!readerClosed) {
+                if (chunks.offer(chunk, 100, TimeUnit.MILLISECONDS)) return;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrompido a escrever no pipe", e);
+        }
+    }
+
+    /** Lado do leitor (um só consumidor). */
+    public InputStream input() {
+        return new InputStream() {
+            private byte[] cur = new byte[0];
+            private int pos;
+            private boolean eof;
+
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                return read(one, 0, 1) == -1 ? -1 : one[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0) return 0;
+                while (pos == cur.length) {
+                    if (eof) return -1;
+                    try {
+                        cur = chunks.take();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Interrompido a ler do pipe", e);
+                    }
+                    pos = 0;
+                    if (cur == EOF) {
+                        eof = true;
+                        if (failed) throw new IOException("Upload interrompido");
+                    }
+                }
+                int n = Math.min(len, cur.length - pos);
+                System.arraycopy(cur, pos, b, off, n);
+                pos += n;
+                return n;
+            }
+
+            @Override
+            public void close() {
+                readerClosed = true;
+                chunks.clear();
+            }
+        };
+    }
+}
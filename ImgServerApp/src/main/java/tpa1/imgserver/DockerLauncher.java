@@ -3,7 +3,10 @@ package tpa1.imgserver;
 import com.github.dockerjava.api.DockerClient;
 import com.github.dockerjava.api.command.CreateContainerResponse;
 import com.github.dockerjava.api.command.InspectContainerResponse;
+import com.github.dockerjava.api.command.WaitContainerResultCallback;
+import com.github.dockerjava.api.exception.NotFoundException;
 import com.github.dockerjava.api.model.Bind;
+import com.github.dockerjava.api.model.Container;
 import com.github.dockerjava.api.model.HostConfig;
 import com.github.dockerjava.api.model.Volume;
 import com.github.dockerjava.core.DefaultDockerClientConfig;
@@ -11,8 +14,55 @@ import com.github.dockerjava.core.DockerClientImpl;
 import com.github.dockerjava.httpclient5.ApacheDockerHttpClient;
 import com.github.dockerjava.transport.DockerHttpClient;
 
-public class DockerLauncher {
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * WorkerLauncher com um container Docker por job (etiquetado com requestId e dono).
+ *
+ * Os pedidos à API do Docker passam por um dispatcher próprio:
+ *  - pool HTTP dimensionado (-Ddocker.maxConnections=64): cada job a correr mantém uma
+ *    ligação aberta no wait, por isso o pool tem de exceder maxJobs + docker.dispatchThreads;
+ *  - create/start/remove correm num executor dedicado (-Ddocker.dispatchThreads=8),
+ *    que limita os pedidos simultâneos ao daemon; launchResize continua síncrono (a
+ *    thread do job espera pelo create+start no executor);
+ *  - o fim do container é detetado com wait (uma chamada) em vez de inspect a cada 500 ms;
+ *  - remove() só enfileira: os containers terminados são removidos em lote a cada
+ *    -Ddocker.cleanupMs=1000, e o job liberta o slot sem esperar pela remoção; uma remoção
+ *    falhada volta à fila até -Ddocker.removeAttempts=5 tentativas;
+ *  - latências por etapa (create, start, exit, remove) escritas no log a cada
+ *    -Ddocker.metricsSec=60 (0 = desligado).
+ */
+public class DockerLauncher implements WorkerLauncher {
+    // labels aplicadas a cada container de worker (permitem reconciliar após restart)
+    public static final String LABEL_REQUEST_ID = "tpa1.requestId";
+    public static final String LABEL_OWNER = "tpa1.owner";
+
+    private static final int MAX_CONNECTIONS = Integer.getInteger("docker.maxConnections", 64);
+    private static final int DISPATCH_THREADS = Integer.getInteger("docker.dispatchThreads", 8);
+    private static final long CLEANUP_MS = Long.getLong("docker.cleanupMs", 1000);
+    private static final long METRICS_SEC = Long.getLong("docker.metricsSec", 60);
+    private static final int REMOVE_ATTEMPTS = Integer.getInteger("docker.removeAttempts", 5);
+
     private final DockerClient dockerClient;
+    private final ExecutorService dispatch;
+    private final ScheduledExecutorService housekeeping = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "docker-cleanup");
+        t.setDaemon(true);
+        return t;
+    });
+    private final Queue<String> toRemove = new ConcurrentLinkedQueue<>();
+    private final Map<String, Long> startedAt = new ConcurrentHashMap<>(); // containerId → nanoTime do start
+    private final Map<String, Integer> removeFailures = new ConcurrentHashMap<>(); // containerId → tentativas falhadas
+
+    private final Stage create = new Stage("create");
+    private final Stage start = new Stage("start");
+    private final Stage exit = new Stage("exit");
+    private final Stage remove = new Stage("remove");
+
+    private static void log(String msg) { System.out.printf("[Docker] %s%n", msg); }
 
     public DockerLauncher() {
         String dockerHost = System.getProperty("dockerHost", "unix:/var/run/docker.sock"); // corrigido, sem '///'
@@ -23,32 +73,186 @@ public class DockerLauncher {
 
         DockerHttpClient http = new ApacheDockerHttpClient.Builder()
                 .dockerHost(config.getDockerHost())
+                .maxConnections(MAX_CONNECTIONS)
+                .connectionTimeout(Duration.ofSeconds(5))
                 .build();
 
         this.dockerClient = DockerClientImpl.getInstance(config, http);
+        this.dispatch = Executors.newFixedThreadPool(DISPATCH_THREADS,
+                Thread.ofPlatform().name("docker-dispatch-", 0).daemon(true).factory());
+
+        housekeeping.scheduleWithFixedDelay(this::cleanup, CLEANUP_MS, CLEANUP_MS, TimeUnit.MILLISECONDS);
+        if (METRICS_SEC > 0) {
+            housekeeping.scheduleWithFixedDelay(this::logMetrics, METRICS_SEC, METRICS_SEC, TimeUnit.SECONDS);
+        }
     }
 
 
-    public String launchResize(String imageName, String hostVolumePath, String inRel, String outRel, double pct){
-        try {
-            Volume vol = new Volume("/images");
-            HostConfig hc = HostConfig.newHostConfig().withBinds(new Bind(hostVolumePath, vol));
-            String[] cmd = new String[]{ "/images/input/"+inRel, "/images/output/"+outRel, String.valueOf(pct)};
+    @Override
+    public String launchResize(String imageName, String hostVolumePath, String inRel, String outRel, double pct,
+                               List<String> encoderArgs, String requestId, String owner){
+        Volume vol = new Volume("/images");
+        HostConfig hc = HostConfig.newHostConfig().withBinds(new Bind(hostVolumePath, vol));
+        List<String> cmd = new ArrayList<>(List.of("/images/input/"+inRel, "/images/output/"+outRel, String.valueOf(pct)));
+        cmd.addAll(encoderArgs);
+        return call(() -> {
+            long t0 = System.nanoTime();
             CreateContainerResponse c = dockerClient.createContainerCmd(imageName)
                     .withHostConfig(hc)
                     .withCmd(cmd)
+                    .withLabels(Map.of(LABEL_REQUEST_ID, requestId, LABEL_OWNER, owner))
                     .exec();
+            long t1 = System.nanoTime();
+            create.record(t1 - t0);
             dockerClient.startContainerCmd(c.getId()).exec();
+            long t2 = System.nanoTime();
+            start.record(t2 - t1);
+            startedAt.put(c.getId(), t2);
             return c.getId();
-        } catch(Exception e){ throw new RuntimeException(e); }
+        });
     }
 
+    @Override
     public boolean isRunning(String containerId){
         InspectContainerResponse st = dockerClient.inspectContainerCmd(containerId).exec();
         return st.getState().getRunning();
     }
 
+    /** Código de saída do container (null se ainda a correr ou desconhecido). */
+    @Override
+    public Long exitCode(String containerId){
+        InspectContainerResponse.ContainerState st = dockerClient.inspectContainerCmd(containerId).exec().getState();
+        return Boolean.TRUE.equals(st.getRunning()) ? null : st.getExitCodeLong();
+    }
+
+    /** Espera pelo fim com POST /wait (uma ligação do pool por container em espera). */
+    @Override
+    public Long awaitExit(String containerId) throws InterruptedException {
+        Long code;
+        try (WaitContainerResultCallback cb = dockerClient.waitContainerCmd(containerId)
+                .exec(new WaitContainerResultCallback())) {
+            code = cb.awaitStatusCode().longValue();
+        } catch (Exception e) {
+            if (Thread.currentThread().isInterrupted()) throw new InterruptedException();
+            // wait interrompido pelo daemon: volta ao polling
+            code = WorkerLauncher.super.awaitExit(containerId);
+        }
+        Long t0 = startedAt.remove(containerId);
+        if (t0 != null) exit.record(System.nanoTime() - t0);
+        return code;
+    }
+
+    /** Containers (a correr ou terminados) lançados por este ImgServer, indexados por requestId. */
+    @Override
+    public Map<String, JobContainer> listByOwner(String owner){
+        List<Container> cs = dockerClient.listContainersCmd()
+                .withShowAll(true)
+                .withLabelFilter(Map.of(LABEL_OWNER, owner))
+                .exec();
+        Map<String, JobContainer> byReq = new HashMap<>();
+        for (Container c : cs) {
+            String rid = c.getLabels() == null ? null : c.getLabels().get(LABEL_REQUEST_ID);
+            if (rid == null) continue;
+            byReq.put(rid, new JobContainer(c.getId(), rid, "running".equalsIgnoreCase(c.getState())));
+        }
+        return byReq;
+    }
+
+    /** Enfileira o container para a próxima remoção em lote. */
+    @Override
     public void remove(String containerId){
-        try { dockerClient.removeContainerCmd(containerId).withForce(true).exec(); } catch(Exception ignore) {}
+        startedAt.remove(containerId);
+        toRemove.add(containerId);
+    }
+
+    /**
+     * Remove em paralelo (no dispatcher) todos os containers enfileirados desde a última passagem.
+     * Um container que já não existe conta como removido; as outras falhas voltam à fila para
+     * a passagem seguinte, até REMOVE_ATTEMPTS tentativas.
+     */
+    private void cleanup() {
+        Map<String, Future<?>> batch = new LinkedHashMap<>();
+        String id;
+        while ((id = toRemove.poll()) != null) {
+            String cid = id;
+            batch.put(cid, dispatch.submit(() -> {
+                long t0 = System.nanoTime();
+                try {
+                    dockerClient.removeContainerCmd(cid).withForce(true).exec();
+                } catch (NotFoundException gone) {
+                    // já removido (ex.: por outro ImgServer ou à mão)
+                }
+                remove.record(System.nanoTime() - t0);
+                return null;
+            }));
+        }
+        for (Map.Entry<String, Future<?>> e : batch.entrySet()) {
+            String cid = e.getKey();
+            try {
+                e.getValue().get();
+                removeFailures.remove(cid);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException ee) {
+                int attempts = removeFailures.merge(cid, 1, Integer::sum);
+                if (attempts < REMOVE_ATTEMPTS) {
+                    log("Remoção do container " + cid + " falhou (tentativa " + attempts + "): "
+                            + ee.getCause().getMessage());
+                    toRemove.add(cid);
+                } else {
+                    log("Container " + cid + " não removido após " + attempts + " tentativas: "
+                            + ee.getCause().getMessage());
+                    removeFailures.remove(cid);
+                }
+            }
+        }
+    }
+
+    /** Executa um comando no dispatcher e espera pelo resultado. */
+    private <T> T call(Callable<T> cmd) {
+        try {
+            return dispatch.submit(cmd).get();
+        } catch (ExecutionException e) {
+            Throwable c = e.getCause();
+            throw c instanceof RuntimeException re ? re : new RuntimeException(c);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void logMetrics() {
+        StringBuilder sb = new StringBuilder();
+        for (Stage s : List.of(create, start, exit, remove)) {
+            String line = s.drain();
+            if (line != null) sb.append(sb.isEmpty() ? "" : " | ").append(line);
+        }
+        if (!sb.isEmpty()) log("Latências (últimos " + METRICS_SEC + "s): " + sb + ", remoções pendentes=" + toRemove.size());
+    }
+
+    /** Contagem, média e máximo de uma etapa desde a última leitura. */
+    private static final class Stage {
+        private final String name;
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong totalNs = new AtomicLong();
+        private final AtomicLong maxNs = new AtomicLong();
+
+        Stage(String name) { this.name = name; }
+
+        void record(long ns) {
+            count.incrementAndGet();
+            totalNs.addAndGet(ns);
+            maxNs.accumulateAndGet(ns, Math::max);
+        }
+
+        /** Resumo "nome n=.. avg=..ms max=..ms" e reinicia (null se não houve amostras). */
+        String drain() {
+            long n = count.getAndSet(0);
+            long total = totalNs.getAndSet(0);
+            long max = maxNs.getAndSet(0);
+            if (n == 0) return null;
+            return String.format("%s n=%d avg=%.1fms max=%.1fms", name, n, total / 1e6 / n, max / 1e6);
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,62 @@
+package tpa1.imgserver;
+
+/**
+ * Leitura só do cabeçalho da imagem (sem descodificar):
+ *  - PNG: chunk IHDR (largura, altura, profundidade, tipo de cor).
+ *  - JPEG: primeiro segmento SOFn (largura, altura, nº de componentes).
+ * Permite guardar as dimensões no registo do job e rejeitar inputs grandes
+ * ainda durante o upload.
+ */
+public final class ImageProbe {
+
+    /** colorType: tipo de cor PNG (0,2,3,4,6) ou nº de componentes JPEG (1=cinza, 3=YCbCr, 4=CMYK). */
+    public record Header(String format, int width, int height, int colorType) {
+        public long pixels() { return (long) width * height; }
+
+        /** true se a imagem exceder o limite de píxeis do ImgServer (-DmaxPixels). */
+        public boolean exceeds(long maxPixels) { return pixels() > maxPixels; }
+    }
+
+    private ImageProbe() {}
+
+    /** Devolve o cabeçalho, ou null se ainda não houver bytes suficientes / formato desconhecido. */
+    public static Header probe(byte[] b, int len) {
+        if (len >= 26 && (b[0] & 0xFF) == 0x89 && b[1] == 'P' && b[2] == 'N' && b[3] == 'G'
+                && b[12] == 'I' && b[13] == 'H' && b[14] == 'D' && b[15] == 'R') {
+            return new Header("png", int32(b, 16), int32(b, 20), b[25] & 0xFF);
+        }
+        if (len >= 4 && (b[0] & 0xFF) == 0xFF && (b[1] & 0xFF) == 0xD8) {
+            return probeJpeg(b, len);
+        }
+        return null;
+    }
+
+    private static Header probeJpeg(byte[] b, int len) {
+        int i = 2;
+        while (i + 4 <= len) {
+            if ((b[i] & 0xFF) != 0xFF) return null; // fora de sincronismo: não é JPEG válido
+            int marker = b[i + 1] & 0xFF;
+            if (marker == 0xFF) { i++; continue; }         // padding
+            if (marker == 0xD8 || (marker >= 0xD0 && marker <= 0xD7) || marker == 0x01) { i += 2; continue; }
+            int segLen = uint16(b, i + 2);
+            boolean sof = marker >= 0xC0 && marker <= 0xCF
+                    && marker != 0xC4 && marker != 0xC8 && marker != 0xCC;
+            if (sof) {
+                if (i + 10 > len) return null;
+                // SOFn: comprimento(2) precisão(1) altura(2) largura(2) componentes(1)
+                return new Header("jpg", uint16(b, i + 7), uint16(b, i + 5), b[i + 9] & 0xFF);
+            }
+            if (marker == 0xDA || marker == 0xD9) return null; // SOS/EOI antes de SOF
+            i += 2 + segLen;
+        }
+        return null;
+    }
+
+    private static int int32(byte[] b, int o) {
+        return ((b[o] & 0xFF) << 24) | ((b[o + 1] & 0xFF) << 16) | ((b[o + 2] & 0xFF) << 8) | (b[o + 3] & 0xFF);
+    }
+
+    private static int uint16(byte[] b, int o) {
+        return ((b[o] & 0xFF) << 8) | (b[o + 1] & 0xFF);
+    }
+}
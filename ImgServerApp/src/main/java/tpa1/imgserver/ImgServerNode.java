@@ -0,0 +1,94 @@
+package tpa1.imgserver;
+
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import manager_server.ManagerServer;
+import manager_server.ManagerServerRegistrationServiceGrpc;
+import tpa1.clientlib.GrpcTransport;
+import tpa1.clientlib.ServerDirectory;
+
+/**
+ * Composição de um ImgServer, partilhada pelo Main e pelo LocalHarness:
+ *  1) register(): regista o nó no ManagerServer (a resposta indica os shards do estado)
+ *  2) start(): volume, limpeza periódica, PeerService + ImgServerService, servidor gRPC,
+ *     pool de work stealing, heartbeat ao Manager e escalonador
+ * O StateStore e o WorkerLauncher ficam a cargo de quem chama (Redis/Docker ou memória/in-process).
+ */
+public class ImgServerNode {
+
+    private final String ip;
+    private final int port;
+    private final ManagedChannel managerChannel;
+    private final ManagerServer.RegisterImgServerRequest regReq;
+    private ServerDirectory directory;
+    private ManagerHeartbeat heartbeat;
+    private Server server;
+
+    public ImgServerNode(String ip, int port, int weight, ManagedChannel managerChannel) {
+        this.ip = ip;
+        this.port = port;
+        this.managerChannel = managerChannel;
+        this.regReq = ManagerServer.RegisterImgServerRequest.newBuilder()
+                .setImgServerIp(ip)
+                .setImgServerPort(port)
+                .setWeight(weight)
+                .build();
+    }
+
+    /**
+     * Regista o nó no ManagerServer e passa a observar a lista de ImgServers (anel de hashing
+     * consistente). Com waitForManager espera que o Manager arranque em vez de falhar de imediato.
+     */
+    public ManagerServer.RegisterImgServerResponse register(boolean waitForManager) {
+        var stub = ManagerServerRegistrationServiceGrpc.newBlockingStub(managerChannel);
+        if (waitForManager) stub = stub.withWaitForReady();
+        ManagerServer.RegisterImgServerResponse resp = stub.registerImgServer(regReq);
+        directory = new ServerDirectory(managerChannel);
+        return resp;
+    }
+
+    /** Arranca o ImgServer sobre volBase/input e volBase/output; devolve o servidor gRPC já a escutar. */
+    public Server start(Path volBase, StateStore store, WorkerLauncher launcher, int maxJobs) throws IOException {
+        if (directory == null) throw new IllegalStateException("register() tem de ser chamado antes de start()");
+        Path inputDir = volBase.resolve("input");
+        Path outputDir = volBase.resolve("output");
+        Files.createDirectories(inputDir);
+        Files.createDirectories(outputDir);
+
+        // limpeza periódica do volume (inputs processados, outputs expirados)
+        VolumeSweeper sweeper = new VolumeSweeper(inputDir, outputDir, store,
+                Long.parseLong(System.getProperty("inputGraceSec", "600")),
+                Long.parseLong(System.getProperty("outputRetentionSec", "86400")));
+        sweeper.start(Long.parseLong(System.getProperty("sweepIntervalSec", "300")));
+
+        PeerService peers = new PeerService(inputDir, store);
+        ImgServerService svc = new ImgServerService(ip, port, inputDir, outputDir, launcher, store, peers, directory);
+        try {
+            svc.recover();
+        } catch (Exception e) {
+            System.out.println("[ImgServer] Reconciliação de jobs falhou: " + e.getMessage());
+        }
+        server = GrpcTransport.server(ip, port)
+                .addService(svc)
+                .addService(peers)
+                .build()
+                .start();
+
+        // entra no pool de work stealing; o registo no Manager repete-se como heartbeat
+        store.registerNode(ip + ":" + port);
+        heartbeat = new ManagerHeartbeat(managerChannel, regReq);
+        heartbeat.start(Long.parseLong(System.getProperty("heartbeatSec", "10")));
+        svc.startScheduler(maxJobs);
+        return server;
+    }
+
+    public void stop() {
+        if (heartbeat != null) heartbeat.stop();
+        if (server != null) server.shutdownNow();
+    }
+}
@@ -1,16 +1,29 @@
 package tpa1.imgserver;
 
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.grpc.stub.ServerCallStreamObserver;
 import io.grpc.stub.StreamObserver;
 import img_client.ImgServerClientServiceGrpc;
 import img_client.ImgClient.*;
+import tpa1.clientlib.Endpoint;
+import tpa1.clientlib.PayloadCompression;
+import tpa1.clientlib.ServerDirectory;
 
 import java.io.*;
 import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Serviço gRPC do ImgServer:
- *  - Recebe uploads, valida e processa via Docker.
+ *  - Recebe uploads, valida e coloca-os na fila partilhada (Redis).
+ *  - Processa via Docker os jobs da sua fila ou roubados a ImgServers sobrecarregados,
+ *    por ordem de weighted-fair queueing entre clientes e com quota de jobs por cliente.
  *  - Disponibiliza downloads (ou redirecta) conforme estado no Redis.
  */
 public class ImgServerService extends ImgServerClientServiceGrpc.ImgServerClientServiceImplBase {
@@ -19,21 +32,54 @@ public class ImgServerService extends ImgServerClientServiceGrpc.ImgServerClient
     private final int selfPort;
     private final Path inputDir;
     private final Path outputDir;
-    private final DockerLauncher docker;
+    private final WorkerLauncher docker;
     private final StateStore store;
+    private final PeerService peers;
+    private final ServerDirectory directory; // anel de hashing consistente (pode ser null)
+
+    // escalonamento local: nº de containers em curso e sinal de novo trabalho
+    private final AtomicInteger running = new AtomicInteger();
+    private final Semaphore wakeup = new Semaphore(0);
+    private volatile int maxJobs;
+
+    // redimensionar durante o upload (launchers com suporte, nó sem fila): latência ≈ tempo de transferência
+    private static final boolean STREAM_RESIZE = Boolean.parseBoolean(System.getProperty("streamResize", "false"));
+
+    // cabeçalho guardado durante o upload: formato + dimensões (o SOF de um JPEG pode vir depois do EXIF)
+    private static final int PROBE_LIMIT = 64 * 1024;
+    private static final long MAX_PIXELS = Long.parseLong(System.getProperty("maxPixels", "100000000"));
+
+    // padrões de codificação do output (favorecem throughput)
+    private static final int DEFAULT_JPEG_QUALITY = Integer.parseInt(System.getProperty("jpegQuality", "85"));
+    private static final int DEFAULT_PNG_LEVEL = Integer.parseInt(System.getProperty("pngLevel", "1"));
+
+    // fair-share: peso por classe (interactive,normal,batch), jobs simultâneos por cliente no cluster (0 = sem limite)
+    private static final double[] PRIORITY_WEIGHTS = Arrays.stream(
+            System.getProperty("priorityWeights", "8,2,1").split(",")).mapToDouble(Double::parseDouble).toArray();
+    private static final int CLIENT_QUOTA = Integer.parseInt(System.getProperty("clientQuota", "8"));
+    private static final int QUEUE_SCAN = Integer.parseInt(System.getProperty("queueScan", "64"));
+    // heartbeat do nó no estado partilhado (o TTL, -DnodeTtlSec, deve ser ~3x maior)
+    private static final long NODE_HEARTBEAT_SEC = Long.parseLong(System.getProperty("nodeHeartbeatSec", "10"));
+
+    // estatísticas escritas pelo worker ao lado do output ("<output>.stats.json")
+    private static final String STATS_SUFFIX = ".stats.json";
+    private static final ObjectMapper JSON = new ObjectMapper();
 
     private static final boolean DEBUG = Boolean.parseBoolean(System.getProperty("debug", "false"));
     private static void dbg(String msg) { if (DEBUG) System.out.println("[DEBUG] " + msg); }
     private static void log(String tag, String msg) { System.out.printf("[%s] %s%n", tag, msg); }
 
     public ImgServerService(String ip, int port, Path inputDir, Path outputDir,
-                            DockerLauncher docker, StateStore store) {
+                            WorkerLauncher docker, StateStore store, PeerService peers,
+                            ServerDirectory directory) {
         this.selfIp = ip;
         this.selfPort = port;
         this.inputDir = inputDir;
         this.outputDir = outputDir;
         this.docker = docker;
         this.store = store;
+        this.peers = peers;
+        this.directory = directory;
     }
 
     // =====================================================================================
@@ -41,16 +87,27 @@ public class ImgServerService extends ImgServerClientServiceGrpc.ImgServerClient
     // =====================================================================================
     @Override
     public StreamObserver<ImageChunk> uploadImage(StreamObserver<UploadImageResponse> respObs) {
-        String requestId = UUID.randomUUID().toString();
+        String requestId = newRequestId();
         final String[] ext = {null}; // extensão dinâmica (.png ou .jpg)
         final Path[] targetFile = {null};
+        final String[] sessionId = {null}; // upload retomável: o .part sobrevive a falhas do stream
+        final long[] written = {0};
+        final ImageProbe.Header[] header = {null};
+        final EncodeOptions[] encode = {null};
+        final String[] client = {null};
+        final Priority[] priority = {Priority.NORMAL};
+        // streaming: só para uploads recebidos desde o byte 0 neste stream
+        final boolean[] streamable = {STREAM_RESIZE};
+        final WorkerLauncher.StreamingRun[] stream = {null};
+        final CompletableFuture<Map<String, Object>> uploaded = new CompletableFuture<>(); // null = upload falhou
 
         log("ImgServer", "Upload iniciado (requestId=" + requestId + ")");
 
         try {
-            ByteArrayOutputStream headSniff = new ByteArrayOutputStream(16);
+            ByteArrayOutputStream headSniff = new ByteArrayOutputStream(1024);
             final boolean[] headerChecked = {false};
             final boolean[] accepted = {true};
+            final boolean[] aborted = {false}; // stream já terminado com onError
             final OutputStream[] out = {null};
 
             return new StreamObserver<>() {
@@ -58,13 +115,45 @@ public class ImgServerService extends ImgServerClientServiceGrpc.ImgServerClient
                 public void onNext(ImageChunk chunk) {
                     if (!accepted[0]) return;
                     byte[] data = chunk.getData().toByteArray();
+                    if (encode[0] == null) encode[0] = chunk.getOptions();
+                    if (client[0] == null) {
+                        client[0] = clientId(chunk.getClientId());
+                        priority[0] = chunk.getPriority();
+                    }
 
                     try {
+                        // 1º chunk de uma sessão: reabre o .part no offset pedido
+                        if (out[0] == null && sessionId[0] == null && !chunk.getSessionId().isEmpty()) {
+                            sessionId[0] = chunk.getSessionId();
+                            targetFile[0] = VolumeLayout.resolve(inputDir, VolumeLayout.sessionRel(sessionId[0]));
+                            written[0] = resumeSession(targetFile[0], chunk.getOffset(), headSniff);
+                            if (written[0] > 0) streamable[0] = false;
+                            out[0] = Files.newOutputStream(targetFile[0],
+                                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+                            if (written[0] > 0)
+                                log("ImgServer", "Upload retomado no byte " + written[0] + " (sessão " + sessionId[0] + ")");
+                        }
+
+                        if (sessionId[0] != null) {
+                            if (chunk.getOffset() != written[0]) {
+                                abort(io.grpc.Status.OUT_OF_RANGE.withDescription(
+                                        "Offset " + chunk.getOffset() + " inesperado, confirmado=" + written[0]));
+                                return;
+                            }
+                            if (chunk.hasCrc32() && crc32(data) != chunk.getCrc32()) {
+                                abort(io.grpc.Status.DATA_LOSS.withDescription(
+                                        "Checksum inválido no offset " + chunk.getOffset()));
+                                return;
+                            }
+                        }
+
+                        // guarda o início do ficheiro até ter o cabeçalho completo
+                        if (header[0] == null && headSniff.size() < PROBE_LIMIT) {
+                            headSniff.write(data, 0, Math.min(data.length, PROBE_LIMIT - headSniff.size()));
+                        }
+
                         // Validar formato logo no início
                         if (!headerChecked[0]) {
-                            int toCopy = Math.min(data.length, 16 - headSniff.size());
-                            if (toCopy > 0) headSniff.write(data, 0, toCopy);
-
                             if (headSniff.size() >= 8) {
                                 headerChecked[0] = true;
                                 ext[0] = detectImageExtension(headSniff.toByteArray());
@@ -74,27 +163,82 @@ public class ImgServerService extends ImgServerClientServiceGrpc.ImgServerClient
                                     return;
                                 }
 
-                                // cria o ficheiro com a extensão correta
-                                targetFile[0] = inputDir.resolve("in-" + requestId + ext[0]);
-                                out[0] = Files.newOutputStream(targetFile[0],
-                                        StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
-                                dbg("Criado ficheiro de upload: " + targetFile[0]);
+                                if (out[0] == null) {
+                                    // cria o ficheiro com a extensão correta (no shard do requestId)
+                                    targetFile[0] = VolumeLayout.resolve(inputDir, VolumeLayout.inputRel(requestId, ext[0]));
+                                    out[0] = Files.newOutputStream(targetFile[0],
+                                            StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+                                    dbg("Criado ficheiro de upload: " + targetFile[0]);
+                                }
+                            }
+                        }
+
+                        // dimensões lidas do cabeçalho: rejeita inputs grandes antes de receber o resto
+                        if (headerChecked[0] && header[0] == null) {
+                            header[0] = ImageProbe.probe(headSniff.toByteArray(), headSniff.size());
+                            if (header[0] != null && header[0].exceeds(MAX_PIXELS)) {
+                                reject("Imagem demasiado grande (" + header[0].width() + "x" + header[0].height()
+                                        + ", máximo " + MAX_PIXELS + " píxeis)");
+                                return;
                             }
                         }
 
                         if (accepted[0] && out[0] != null) {
                             out[0].write(data);
+                            written[0] += data.length;
+                            if (stream[0] != null) {
+                                stream[0].pipe().write(data);
+                            } else if (streamable[0] && header[0] != null) {
+                                streamable[0] = false; // uma só tentativa por upload
+                                out[0].flush();
+                                stream[0] = startStreaming(requestId, client[0], targetFile[0], ext[0], encode[0], uploaded);
+                            }
                         }
 
-                    } catch (IOException e) {
-                        accepted[0] = false;
-                        dbg("IOException no upload: " + e.getMessage());
+                    } catch (IOException | IllegalArgumentException e) {
+                        dbg("Erro no upload: " + e.getMessage());
+                        if (sessionId[0] != null) abort(io.grpc.Status.INTERNAL.withDescription(e.getMessage()));
+                        else accepted[0] = false;
                     }
                 }
 
+                /** Rejeição definitiva: responde ERROR já (o cliente não deve repetir). */
+                private void reject(String msg) {
+                    accepted[0] = false;
+                    aborted[0] = true;
+                    cancelStream();
+                    try { if (out[0] != null) out[0].close(); } catch (IOException ignored) {}
+                    safeDelete(targetFile[0]);
+                    log("ImgServer", "Upload rejeitado (" + requestId + "): " + msg);
+                    respObs.onNext(UploadImageResponse.newBuilder().setRequestId("ERROR").setMessage(msg).build());
+                    respObs.onCompleted();
+                }
+
+                /** Termina o stream com erro; numa sessão o cliente retoma a partir do offset confirmado. */
+                private void abort(io.grpc.Status st) {
+                    accepted[0] = false;
+                    aborted[0] = true;
+                    cancelStream();
+                    try { if (out[0] != null) out[0].close(); } catch (IOException ignored) {}
+                    log("ImgServer", "Upload interrompido (" + requestId + "): " + st.getDescription());
+                    respObs.onError(st.asRuntimeException());
+                }
+
+                /** O worker em streaming (se existir) falha e o seu output é descartado. */
+                private void cancelStream() {
+                    if (stream[0] != null) stream[0].pipe().abort();
+                    uploaded.complete(null);
+                }
+
                 @Override
                 public void onError(Throwable t) {
                     try { if (out[0] != null) out[0].close(); } catch (IOException ignored) {}
+                    cancelStream();
+                    if (sessionId[0] != null) {
+                        log("ImgServer", "Upload interrompido (sessão " + sessionId[0] + ", " + written[0]
+                                + " bytes confirmados): " + t.getMessage());
+                        return;
+                    }
                     log("ImgServer", "Upload falhou (" + requestId + "): " + t.getMessage());
                     safeDelete(targetFile[0]);
                 }
@@ -102,8 +246,10 @@ public class ImgServerService extends ImgServerClientServiceGrpc.ImgServerClient
                 @Override
                 public void onCompleted() {
                     try { if (out[0] != null) out[0].close(); } catch (IOException ignored) {}
+                    if (aborted[0]) return;
 
                     if (!accepted[0] || ext[0] == null) {
+                        cancelStream();
                         safeDelete(targetFile[0]);
                         UploadImageResponse resp = UploadImageResponse.newBuilder()
                                 .setRequestId("ERROR")
@@ -114,29 +260,61 @@ public class ImgServerService extends ImgServerClientServiceGrpc.ImgServerClient
                         return;
                     }
 
-                    // ======= salvar estado PROCESSING no Redis =======
-                    String inName = "in-" + requestId + ext[0];
-                    String outName = "out-" + requestId + ext[0];
+                    // ======= salvar estado QUEUED no Redis =======
+                    String inName = VolumeLayout.inputRel(requestId, ext[0]);
+                    String outName = VolumeLayout.outputRel(requestId, ext[0]);
+
+                    if (sessionId[0] != null) {
+                        // sessão completa: o .part passa a ser o input do job
+                        try {
+                            targetFile[0] = Files.move(targetFile[0], VolumeLayout.resolve(inputDir, inName),
+                                    StandardCopyOption.ATOMIC_MOVE);
+                        } catch (IOException e) {
+                            cancelStream();
+                            respObs.onError(io.grpc.Status.INTERNAL.withDescription(e.getMessage()).asRuntimeException());
+                            return;
+                        }
+                        store.put(sessionKey(sessionId[0]), Map.of("requestId", requestId));
+                    }
+                    try {
+                        // o worker escreve no shard de output, que tem de existir no host
+                        VolumeLayout.resolve(outputDir, outName);
+                    } catch (IOException e) {
+                        dbg("Falha ao criar shard de output: " + e.getMessage());
+                    }
 
                     Map<String, Object> meta = new HashMap<>();
                     meta.put("requestId", requestId);
-                    meta.put("status", "PROCESSING");
+                    meta.put("status", "QUEUED");
                     meta.put("imgServerIP", selfIp);
                     meta.put("imgServerPort", selfPort);
                     meta.put("inputFile", "/images/input/" + inName);
                     meta.put("outputFile", "/images/output/" + outName);
-                    store.put(requestId, meta);
-
-                    log("ImgServer", "Imagem recebida e marcada como PROCESSING (" + requestId + ")");
-
-                    // ======= lançar container Docker =======
-                    String workerImage = System.getProperty("workerImage", "imageprocessorapp");
-                    double pct = Double.parseDouble(System.getProperty("resizePct", "0.5"));
-                    String containerId = docker.launchResize(workerImage,
-                            inputDir.getParent().toString(), inName, outName, pct);
-                    meta.put("containerId", containerId);
-                    store.put(requestId, meta);
-                    log("ImgServer", "Container Docker iniciado (id=" + containerId + ", requestId=" + requestId + ")");
+                    meta.put("encoder", encoderOptions(encode[0]));
+                    meta.put("clientId", client[0] != null ? client[0] : clientId(""));
+                    meta.put("priority", priority[0].name());
+                    if (header[0] != null) {
+                        meta.put("width", header[0].width());
+                        meta.put("height", header[0].height());
+                        meta.put("colorType", header[0].colorType());
+                    }
+                    if (stream[0] != null) {
+                        // já a ser processada: não passa pela fila
+                        try { stream[0].pipe().close(); } catch (IOException ignored) {}
+                        meta.put("status", "PROCESSING");
+                        meta.put("containerId", stream[0].id());
+                        meta.put("streamed", true);
+                        store.put(requestId, meta);
+                        store.trackJob(node(), requestId);
+                        uploaded.complete(meta);
+                        log("ImgServer", "Imagem recebida, já em processamento em streaming (" + requestId + ")");
+                    } else {
+                        store.put(requestId, meta);
+                        store.trackJob(node(), requestId);
+                        enqueue(requestId, meta);
+                        wakeup.release();
+                        log("ImgServer", "Imagem recebida e colocada em fila (" + requestId + ")");
+                    }
 
                     // resposta imediata ao cliente
                     UploadImageResponse resp = UploadImageResponse.newBuilder()
@@ -145,22 +323,6 @@ public class ImgServerService extends ImgServerClientServiceGrpc.ImgServerClient
                             .build();
                     respObs.onNext(resp);
                     respObs.onCompleted();
-
-                    // ======= thread para monitorizar conclusão =======
-                    new Thread(() -> {
-                        try {
-                            while (docker.isRunning(containerId)) Thread.sleep(500);
-                            Map<String, Object> done = store.get(requestId);
-                            if (done != null) {
-                                done.put("status", "DONE");
-                                store.put(requestId, done);
-                                log("ImgServer", "Processamento concluído e marcado como DONE (" + requestId + ")");
-                            }
-                        } catch (InterruptedException ignored) {
-                        } finally {
-                            docker.remove(containerId);
-                        }
-                    }, "worker-wait-" + requestId).start();
                 }
             };
 
@@ -179,13 +341,34 @@ public class ImgServerService extends ImgServerClientServiceGrpc.ImgServerClient
         }
     }
 
+    @Override
+    public void getUploadStatus(UploadStatusRequest request, StreamObserver<UploadStatusResponse> resp) {
+        String sid = request.getSessionId();
+        UploadStatusResponse.Builder b = UploadStatusResponse.newBuilder();
+        try {
+            Map<String, Object> done = store.get(sessionKey(sid));
+            if (done != null) {
+                b.setRequestId(String.valueOf(done.get("requestId")));
+            } else {
+                Path part = inputDir.resolve(VolumeLayout.sessionRel(sid));
+                b.setCommittedOffset(Files.exists(part) ? Files.size(part) : 0);
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            resp.onError(io.grpc.Status.INVALID_ARGUMENT.withDescription(e.getMessage()).asRuntimeException());
+            return;
+        }
+        resp.onNext(b.build());
+        resp.onCompleted();
+    }
+
     // =====================================================================================
     // Download (stream de saída)
     // =====================================================================================
     @Override
     public void downloadImage(DownloadImageRequest request, StreamObserver<DownloadImageChunk> resp) {
         String requestId = request.getRequestId();
-        Map<String, Object> meta = store.get(requestId);
+        // consulta de estado (os clientes repetem-na até DONE): pode ser servida por uma réplica
+        Map<String, Object> meta = store.peek(requestId);
 
         if (meta == null) {
             log("ImgServer", "Pedido de download rejeitado — requestId desconhecido (" + requestId + ")");
@@ -196,7 +379,6 @@ public class ImgServerService extends ImgServerClientServiceGrpc.ImgServerClient
         String status = String.valueOf(meta.get("status"));
         String ownerIp = String.valueOf(meta.get("imgServerIP"));
         int ownerPort = Integer.parseInt(String.valueOf(meta.get("imgServerPort")));
-        String outPath = String.valueOf(meta.get("outputFile"));
 
         // redirect se o ficheiro não é deste ImgServer
         if (!ownerIp.equals(selfIp) || ownerPort != selfPort) {
@@ -205,40 +387,537 @@ public class ImgServerService extends ImgServerClientServiceGrpc.ImgServerClient
             return;
         }
 
+        if ("FAILED".equals(status)) {
+            log("ImgServer", "Pedido de download de job falhado (" + requestId + ")");
+            sendStatus(resp, "ERROR", null, 0, "Processamento falhou");
+            return;
+        }
+
         // ainda em processamento
         if (!"DONE".equals(status)) {
             log("ImgServer", "Pedido de download ainda em processamento (" + requestId + ")");
-            sendStatus(resp, status, null, 0, "Ainda não pronto");
+            // QUEUED é reportado como PROCESSING (os clientes só conhecem este estado)
+            sendStatus(resp, "PROCESSING", null, 0, "QUEUED".equals(status) ? "Em fila" : "Ainda não pronto");
             return;
         }
 
         // DONE e local → stream do ficheiro
-        Path realOut = outputDir.resolve(Paths.get(outPath).getFileName());
+        Path realOut = outputPath(meta);
         if (!Files.exists(realOut)) {
             log("ImgServer", "Erro: ficheiro final não encontrado (" + realOut + ")");
             sendStatus(resp, "ERROR", null, 0, "Ficheiro não encontrado no volume");
             return;
         }
 
-        log("ImgServer", "Download iniciado (" + requestId + ")");
+        String codec = PayloadCompression.forFile(realOut);
+        if (!PayloadCompression.NONE.equals(codec) && resp instanceof ServerCallStreamObserver<?> call) {
+            call.setCompression(codec); // ignorado pelo gRPC se o cliente não anunciar o codec
+        }
+        log("ImgServer", "Download iniciado (" + requestId + (request.getOffset() > 0 ? ", offset=" + request.getOffset() : "")
+                + (PayloadCompression.NONE.equals(codec) ? "" : ", " + codec) + ")");
         try (InputStream in = Files.newInputStream(realOut)) {
+            long total = Files.size(realOut);
+            if (request.getOffset() < 0 || request.getOffset() > total) {
+                sendStatus(resp, "ERROR", null, 0, "Offset fora do ficheiro (tamanho=" + total + ")");
+                return;
+            }
+            in.skipNBytes(request.getOffset());
+            long remaining = request.getLength() > 0
+                    ? Math.min(request.getLength(), total - request.getOffset())
+                    : total - request.getOffset();
+
             byte[] buf = new byte[8192];
             int n;
-            while ((n = in.read(buf)) != -1) {
+            while (remaining > 0 && (n = in.read(buf, 0, (int) Math.min(buf.length, remaining))) != -1) {
                 resp.onNext(DownloadImageChunk.newBuilder()
                         .setData(com.google.protobuf.ByteString.copyFrom(buf, 0, n))
                         .build());
+                remaining -= n;
             }
-            sendStatus(resp, "DONE", null, 0, "OK");
+            resp.onNext(DownloadImageChunk.newBuilder().setStatus(DownloadImageStatus.newBuilder()
+                    .setStatus("DONE").setMessage("OK").setTotalSize(total)).build());
+            resp.onCompleted();
             log("ImgServer", "Download concluído com sucesso (" + requestId + ")");
         } catch (IOException e) {
             sendStatus(resp, "ERROR", null, 0, e.getMessage());
         }
     }
 
+    // =====================================================================================
+    // Estatísticas do job (medidas pelo worker)
+    // =====================================================================================
+    @Override
+    public void getJobStats(JobStatsRequest request, StreamObserver<JobStatsResponse> resp) {
+        Map<String, Object> meta = store.peek(request.getRequestId());
+        JobStatsResponse.Builder b = JobStatsResponse.newBuilder()
+                .setStatus(meta == null ? "UNKNOWN" : String.valueOf(meta.get("status")));
+        if (meta != null) {
+            b.setStreamed(Boolean.TRUE.equals(meta.get("streamed")));
+            if (meta.get("stats") instanceof Map<?, ?> st) {
+                b.setHasStats(true)
+                        .setDecodeNs(num(st, "decodeNs"))
+                        .setResizeNs(num(st, "resizeNs"))
+                        .setEncodeNs(num(st, "encodeNs"))
+                        .setTotalNs(num(st, "totalNs"))
+                        .setInputWidth((int) num(st, "inputWidth"))
+                        .setInputHeight((int) num(st, "inputHeight"))
+                        .setOutputWidth((int) num(st, "outputWidth"))
+                        .setOutputHeight((int) num(st, "outputHeight"))
+                        .setInputBytes(num(st, "inputBytes"))
+                        .setOutputBytes(num(st, "outputBytes"))
+                        .setPeakHeapBytes(num(st, "peakHeapBytes"))
+                        .setSubsampling((int) num(st, "subsampling"));
+            }
+        }
+        resp.onNext(b.build());
+        resp.onCompleted();
+    }
+
+    private static long num(Map<?, ?> m, String key) {
+        return m.get(key) instanceof Number n ? n.longValue() : 0;
+    }
+
+    /** Lê e apaga o ficheiro de estatísticas do worker (null se não existir ou for inválido). */
+    private static Map<String, Object> readStats(Path output) {
+        Path f = output.resolveSibling(output.getFileName() + STATS_SUFFIX);
+        try {
+            if (!Files.exists(f)) return null;
+            return JSON.readValue(f.toFile(), new TypeReference<Map<String, Object>>() {});
+        } catch (IOException e) {
+            dbg("Estatísticas inválidas em " + f + ": " + e.getMessage());
+            return null;
+        } finally {
+            safeDelete(f);
+        }
+    }
+
+    // =====================================================================================
+    // Ciclo de vida dos jobs (lançamento, monitorização, reconciliação)
+    // =====================================================================================
+
+    /**
+     * Ciclo do escalonador: enquanto houver slots livres, consome a própria fila;
+     * se esta estiver vazia, rouba da cauda da fila mais longa de outro ImgServer.
+     * A fila é ordenada por tempo de fim WFQ: um cliente batch com centenas de jobs
+     * não atrasa mais do que 1/peso os jobs de um cliente interativo.
+     */
+    public void startScheduler(int maxJobs) {
+        this.maxJobs = maxJobs;
+        Thread t = new Thread(() -> {
+            while (!Thread.currentThread().isInterrupted()) {
+                try {
+                    String rid = running.get() < maxJobs ? nextJob() : null;
+                    if (rid == null) {
+                        wakeup.tryAcquire(200, TimeUnit.MILLISECONDS);
+                        continue;
+                    }
+                    running.incrementAndGet();
+                    new Thread(() -> {
+                        String requeueOn = null;
+                        try {
+                            requeueOn = execute(rid);
+                        } finally {
+                            store.release(node(), rid);
+                            // só depois do release: o enqueue volta a contar o job como pendente do cliente
+                            if (requeueOn != null) requeue(requeueOn, rid);
+                            running.decrementAndGet();
+                            wakeup.release();
+                        }
+                    }, "job-" + rid).start();
+                } catch (InterruptedException e) {
+                    return;
+                } catch (Exception e) {
+                    dbg("Erro no escalonador: " + e.getMessage());
+                }
+            }
+        }, "job-scheduler");
+        t.setDaemon(true);
+        t.start();
+        startHeartbeat();
+        log("ImgServer", "Escalonador ativo (maxJobs=" + maxJobs + ")");
+    }
+
+    /**
+     * Mantém o nó vivo no estado partilhado e retira os nós que deixaram de o fazer: sem
+     * isto, os jobs de um ImgServer morto contariam para sempre na quota e nos pendentes
+     * do cliente (e o Manager abrandá-lo-ia indefinidamente).
+     */
+    private void startHeartbeat() {
+        Thread t = new Thread(() -> {
+            while (!Thread.currentThread().isInterrupted()) {
+                try {
+                    Thread.sleep(NODE_HEARTBEAT_SEC * 1000L);
+                    if (store.heartbeat(node())) {
+                        // estivemos calados tempo demais: as nossas filas foram apagadas
+                        log("ImgServer", "Nó dado como morto por outro ImgServer: a repor a fila");
+                        requeueOwn();
+                    }
+                    for (String dead : store.reapDeadNodes()) {
+                        log("ImgServer", "ImgServer " + dead + " sem heartbeat: fila e quotas devolvidas");
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                } catch (Exception e) {
+                    dbg("Erro no heartbeat: " + e.getMessage());
+                }
+            }
+        }, "node-heartbeat");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /** Volta a pôr na fila deste nó os seus jobs ainda QUEUED. */
+    private void requeueOwn() {
+        int n = 0;
+        for (String rid : store.jobsOf(node())) {
+            Map<String, Object> meta = store.get(rid);
+            if (meta != null && "QUEUED".equals(String.valueOf(meta.get("status")))) {
+                enqueue(rid, meta);
+                n++;
+            }
+        }
+        if (n > 0) wakeup.release();
+        log("ImgServer", n + " jobs repostos na fila");
+    }
+
+    private String nextJob() {
+        String rid = store.pollOwn(node(), CLIENT_QUOTA, QUEUE_SCAN);
+        if (rid != null) return rid;
+
+        String victim = null;
+        long longest = 0;
+        for (String n : store.nodes()) {
+            if (n.equals(node())) continue;
+            long len = store.queueLength(n);
+            if (len > longest) { longest = len; victim = n; }
+        }
+        return victim == null ? null : store.steal(victim, node(), CLIENT_QUOTA, QUEUE_SCAN);
+    }
+
+    /**
+     * Executa um job em fila: obtém o input (se roubado), lança o container e espera.
+     * Devolve o nó a cuja fila o job deve voltar (input roubado indisponível por agora), ou null.
+     */
+    private String execute(String requestId) {
+        Map<String, Object> meta = store.get(requestId);
+        if (meta == null) return null; // registo expirado
+
+        String ownerIp = String.valueOf(meta.get("imgServerIP"));
+        int ownerPort = Integer.parseInt(String.valueOf(meta.get("imgServerPort")));
+        String owner = ownerIp + ":" + ownerPort;
+
+        if (!owner.equals(node())) {
+            // job roubado: passa a pertencer a este nó (downloads são redirecionados para cá)
+            store.trackJob(node(), requestId);
+            try {
+                peers.fetchFrom(ownerIp, ownerPort, requestId, meta);
+            } catch (NoSuchFileException e) {
+                // o dono já não tem o input: o job não pode correr em lado nenhum
+                log("ImgServer", "Input do job " + requestId + " desapareceu de " + owner + ": FAILED");
+                meta.put("status", "FAILED");
+                store.put(requestId, meta);
+                store.untrackJob(node(), requestId);
+                store.untrackJob(owner, requestId);
+                return null;
+            } catch (IOException e) {
+                // dono a reiniciar ou lento: o job continua dele e volta à sua fila
+                log("ImgServer", "Falha ao roubar job " + requestId + " de " + owner + " (volta à fila do dono): "
+                        + e.getMessage());
+                store.untrackJob(node(), requestId);
+                return owner;
+            }
+            meta.put("imgServerIP", selfIp);
+            meta.put("imgServerPort", selfPort);
+            meta.put("receivedBy", owner);
+            store.untrackJob(owner, requestId);
+            log("ImgServer", "Job roubado a " + owner + " (" + requestId + ")");
+        }
+
+        try {
+            // o worker escreve no shard de output, que tem de existir no host
+            VolumeLayout.resolve(outputDir, rel(meta, "outputFile", "/images/output/"));
+        } catch (IOException e) {
+            dbg("Falha ao criar shard de output: " + e.getMessage());
+        }
+
+        meta.put("status", "PROCESSING");
+        String containerId;
+        try {
+            containerId = launch(requestId, meta);
+        } catch (RuntimeException e) {
+            log("ImgServer", "Falha ao lançar container (" + requestId + "): " + e.getMessage());
+            meta.put("status", "FAILED");
+            store.put(requestId, meta);
+            store.untrackJob(node(), requestId);
+            return null;
+        }
+        awaitContainer(requestId, containerId);
+        return null;
+    }
+
+    /**
+     * Devolve um job roubado à fila do dono. Se o dono já foi retirado do conjunto de nós
+     * o job fica QUEUED no seu índice e é reposto na fila quando o dono reiniciar (recover).
+     */
+    private void requeue(String owner, String requestId) {
+        try {
+            Map<String, Object> meta = store.get(requestId);
+            if (meta == null) return;
+            meta.put("status", "QUEUED");
+            store.put(requestId, meta);
+            if (store.nodes().contains(owner)) enqueue(owner, requestId, meta);
+        } catch (RuntimeException e) {
+            log("ImgServer", "Não foi possível devolver o job " + requestId + " a " + owner + ": " + e.getMessage());
+        }
+    }
+
+    /** Lança o container de um job PROCESSING e regista o containerId. */
+    private String launch(String requestId, Map<String, Object> meta) {
+        String workerImage = System.getProperty("workerImage", "imageprocessorapp");
+        String containerId = docker.launchResize(workerImage, inputDir.getParent().toString(),
+                rel(meta, "inputFile", "/images/input/"), rel(meta, "outputFile", "/images/output/"),
+                resizePct(), encoderArgs(meta), requestId, node());
+        meta.put("containerId", containerId);
+        store.put(requestId, meta);
+        log("ImgServer", "Container Docker iniciado (id=" + containerId + ", requestId=" + requestId + ")");
+        return containerId;
+    }
+
+    /** Monitoriza numa thread própria um container já lançado (usado na reconciliação). */
+    private void monitor(String requestId, String containerId) {
+        running.incrementAndGet();
+        new Thread(() -> {
+            try {
+                awaitContainer(requestId, containerId);
+            } finally {
+                store.release(node(), requestId);
+                running.decrementAndGet();
+                wakeup.release();
+            }
+        }, "worker-wait-" + requestId).start();
+    }
+
+    /**
+     * Arranca o worker em streaming se houver um slot livre, a fila deste nó estiver vazia
+     * (assim não passa à frente de jobs em espera) e o cliente estiver abaixo da quota; o job
+     * conta nas quotas e pendentes do cliente como um retirado da fila. Recebe os bytes já
+     * gravados em file e depois os chunks seguintes do upload. null = segue pelo caminho
+     * normal (fila).
+     */
+    private WorkerLauncher.StreamingRun startStreaming(String requestId, String client, Path file, String ext,
+                                                       EncodeOptions encode,
+                                                       CompletableFuture<Map<String, Object>> uploaded) {
+        if (store.queueLength(node()) > 0) return null;
+        if (running.getAndUpdate(n -> n < maxJobs ? n + 1 : n) >= maxJobs) return null;
+        if (!store.acquire(node(), requestId, client, CLIENT_QUOTA)) {
+            running.decrementAndGet();
+            return null;
+        }
+
+        WorkerLauncher.StreamingRun run = null;
+        try {
+            String outRel = VolumeLayout.outputRel(requestId, ext);
+            VolumeLayout.resolve(outputDir, outRel);
+            run = docker.launchStreaming(inputDir.getParent().toString(), outRel, resizePct(),
+                    encoderArgs(Map.of("encoder", encoderOptions(encode))), requestId, node());
+            if (run != null) run.pipe().write(Files.readAllBytes(file));
+        } catch (IOException | RuntimeException e) {
+            dbg("Streaming indisponível (" + requestId + "): " + e.getMessage());
+            if (run != null) run.pipe().abort();
+        }
+        if (run == null) {
+            store.release(node(), requestId);
+            running.decrementAndGet();
+            wakeup.release();
+            return null;
+        }
+        WorkerLauncher.StreamingRun r = run;
+        new Thread(() -> awaitStreaming(requestId, r, uploaded), "stream-wait-" + requestId).start();
+        log("ImgServer", "Redimensionamento em streaming iniciado (id=" + run.id() + ", requestId=" + requestId + ")");
+        return run;
+    }
+
+    /**
+     * Fecha um job em streaming: DONE se o worker terminou bem, senão volta à fila
+     * (o input ficou completo no volume); sem upload completo o output é descartado.
+     */
+    private void awaitStreaming(String requestId, WorkerLauncher.StreamingRun run,
+                                CompletableFuture<Map<String, Object>> uploaded) {
+        boolean released = false;
+        try {
+            Long code = docker.awaitExit(run.id());
+            Map<String, Object> meta = uploaded.get();
+            if (meta == null) return;
+            if (code != null && code == 0 && Files.exists(outputPath(meta))) {
+                finish(requestId, code);
+            } else {
+                log("ImgServer", "Streaming falhou (" + requestId + "): job volta à fila");
+                meta.remove("containerId");
+                meta.remove("streamed");
+                meta.put("status", "QUEUED");
+                store.put(requestId, meta);
+                // liberta antes do enqueue, que volta a contar o job como pendente do cliente
+                store.release(node(), requestId);
+                released = true;
+                enqueue(requestId, meta);
+            }
+        } catch (InterruptedException | ExecutionException ignored) {
+        } finally {
+            if (!released) store.release(node(), requestId);
+            docker.remove(run.id());
+            running.decrementAndGet();
+            wakeup.release();
+        }
+    }
+
+    private void awaitContainer(String requestId, String containerId) {
+        try {
+            finish(requestId, docker.awaitExit(containerId));
+        } catch (InterruptedException ignored) {
+        } finally {
+            // remoção em lote no DockerLauncher: o slot fica livre já
+            docker.remove(containerId);
+        }
+    }
+
+    /** Marca DONE/FAILED um job cujo container já terminou (com o código code) e liberta o input. */
+    private void finish(String requestId, Long code) {
+        Map<String, Object> meta = store.get(requestId);
+        if (meta != null) {
+            boolean ok = (code == null || code == 0) && Files.exists(outputPath(meta));
+            meta.put("status", ok ? "DONE" : "FAILED");
+            Map<String, Object> stats = readStats(outputPath(meta));
+            if (stats != null) meta.put("stats", stats);
+            store.put(requestId, meta);
+            log("ImgServer", "Processamento concluído e marcado como " + meta.get("status") + " (" + requestId + ")");
+            // input já não é necessário
+            safeDelete(inputPath(meta));
+        }
+        store.untrackJob(node(), requestId);
+    }
+
+    /**
+     * Reconciliação no arranque: cruza os jobs deste nó no Redis com os containers
+     * etiquetados com o seu requestId. Retoma a monitorização dos que ainda correm,
+     * fecha os que terminaram enquanto o ImgServer estava em baixo e volta a pôr em
+     * fila os jobs órfãos cujo input ainda existe.
+     */
+    public void recover() {
+        // ainda no conjunto de nós (restart rápido): renova a marca de vida para os outros não
+        // apagarem a fila que estamos a repor; um nó novo só entra no pool depois de arrancar
+        if (store.nodes().contains(node())) store.heartbeat(node());
+        Set<String> ids = store.jobsOf(node());
+        Map<String, WorkerLauncher.JobContainer> containers = docker.listByOwner(node());
+        Map<String, String> toMonitor = new LinkedHashMap<>(); // requestId → containerId
+        Map<String, String> runningJobs = new HashMap<>(); // requestId → cliente
+        int resumed = 0, closed = 0, requeued = 0, failed = 0;
+
+        for (String rid : ids) {
+            Map<String, Object> meta = store.get(rid);
+            WorkerLauncher.JobContainer c = containers.remove(rid);
+
+            String status = meta == null ? null : String.valueOf(meta.get("status"));
+            if ("QUEUED".equals(status)) {
+                // pode ter sido retirado da fila sem chegar a correr
+                enqueue(rid, meta);
+                requeued++;
+                continue;
+            }
+            if (!"PROCESSING".equals(status)) {
+                if (c != null) docker.remove(c.id());
+                store.untrackJob(node(), rid);
+                store.release(node(), rid);
+                continue;
+            }
+
+            if (c != null && c.running()) {
+                toMonitor.put(rid, c.id());
+                runningJobs.put(rid, String.valueOf(meta.getOrDefault("clientId", clientId(""))));
+                resumed++;
+            } else if (c != null) {
+                try { finish(rid, docker.exitCode(c.id())); } finally { docker.remove(c.id()); }
+                store.release(node(), rid);
+                closed++;
+            } else if (Files.exists(inputPath(meta))) {
+                meta.put("status", "QUEUED");
+                store.put(rid, meta);
+                enqueue(rid, meta);
+                requeued++;
+            } else {
+                meta.put("status", "FAILED");
+                store.put(rid, meta);
+                store.untrackJob(node(), rid);
+                store.release(node(), rid);
+                failed++;
+            }
+        }
+
+        // as quotas contam só os containers que continuam vivos
+        store.resetRunning(node(), runningJobs);
+        toMonitor.forEach(this::monitor);
+
+        // containers sem job associado (registo expirado ou apagado)
+        for (WorkerLauncher.JobContainer c : containers.values()) docker.remove(c.id());
+
+        log("ImgServer", String.format("Reconciliação: %d retomados, %d concluídos, %d em fila, %d falhados, %d containers órfãos removidos",
+                resumed, closed, requeued, failed, containers.size()));
+    }
+
     // =====================================================================================
     // Helpers
     // =====================================================================================
+    private String node() { return selfIp + ":" + selfPort; }
+
+    private void enqueue(String requestId, Map<String, Object> meta) {
+        enqueue(node(), requestId, meta);
+    }
+
+    /** Coloca o job na fila do nó com custo proporcional aos megapíxeis e peso da classe do cliente. */
+    private void enqueue(String queueNode, String requestId, Map<String, Object> meta) {
+        String client = String.valueOf(meta.getOrDefault("clientId", clientId("")));
+        Priority p;
+        try {
+            p = Priority.valueOf(String.valueOf(meta.getOrDefault("priority", "NORMAL")));
+        } catch (IllegalArgumentException e) {
+            p = Priority.NORMAL;
+        }
+        double weight = switch (p) {
+            case INTERACTIVE -> PRIORITY_WEIGHTS[0];
+            case BATCH -> PRIORITY_WEIGHTS[2];
+            default -> PRIORITY_WEIGHTS[1];
+        };
+        double cost = 1.0;
+        if (meta.get("width") instanceof Number w && meta.get("height") instanceof Number h) {
+            cost = Math.max(1.0, w.doubleValue() * h.doubleValue() / 1e6);
+        }
+        store.enqueue(queueNode, requestId, client, weight, cost);
+    }
+
+    private static double resizePct() {
+        return Double.parseDouble(System.getProperty("resizePct", "0.5"));
+    }
+
+    /** clientId enviado no upload (limitado a 64 caracteres); sem id → "anonymous". */
+    private static String clientId(String raw) {
+        String c = raw == null ? "" : raw.strip();
+        if (c.isEmpty()) return "anonymous";
+        return c.length() > 64 ? c.substring(0, 64) : c;
+    }
+
+    private Path inputPath(Map<String, Object> meta) {
+        return inputDir.resolve(rel(meta, "inputFile", "/images/input/"));
+    }
+
+    private Path outputPath(Map<String, Object> meta) {
+        return outputDir.resolve(rel(meta, "outputFile", "/images/output/"));
+    }
+
+    /** Caminho relativo ao volume a partir do caminho visto pelo container. */
+    private static String rel(Map<String, Object> meta, String key, String containerPrefix) {
+        String p = String.valueOf(meta.get(key));
+        return p.startsWith(containerPrefix) ? p.substring(containerPrefix.length()) : p;
+    }
+
     private static void sendStatus(StreamObserver<DownloadImageChunk> resp, String st, String ip, int port, String msg) {
         DownloadImageStatus.Builder b = DownloadImageStatus.newBuilder()
                 .setStatus(st)
@@ -248,6 +927,72 @@ public class ImgServerService extends ImgServerClientServiceGrpc.ImgServerClient
         resp.onCompleted();
     }
 
+    /**
+     * Gera um requestId cujo dono no anel de hashing é este ImgServer, para que os
+     * clientes enviem o download diretamente para aqui (sem REDIRECT nem ida ao Redis).
+     * Com N servidores são precisas em média N tentativas.
+     */
+    private String newRequestId() {
+        String id = UUID.randomUUID().toString();
+        if (directory == null) return id;
+        for (int i = 0; i < 64; i++) {
+            Endpoint owner = directory.owner(id);
+            if (owner == null || owner.toString().equals(node())) return id;
+            id = UUID.randomUUID().toString();
+        }
+        return id; // anel sem este nó (ainda): fica o dono registado no Redis
+    }
+
+    /** Opções pedidas pelo cliente, completadas com os padrões do servidor. */
+    private static Map<String, Object> encoderOptions(EncodeOptions o) {
+        if (o == null) o = EncodeOptions.getDefaultInstance();
+        Map<String, Object> enc = new LinkedHashMap<>();
+        enc.put("quality", o.getJpegQuality() > 0 ? Math.min(100, o.getJpegQuality()) : DEFAULT_JPEG_QUALITY);
+        enc.put("progressive", o.getProgressive());
+        enc.put("chroma", o.getChroma444() ? "444" : "420");
+        enc.put("pngLevel", o.getPngLevel() > 0 ? Math.min(9, o.getPngLevel()) : DEFAULT_PNG_LEVEL);
+        return enc;
+    }
+
+    /** Argumentos "chave=valor" do worker a partir do registo do job. */
+    @SuppressWarnings("unchecked")
+    private static List<String> encoderArgs(Map<String, Object> meta) {
+        Object enc = meta.get("encoder");
+        if (!(enc instanceof Map<?, ?> m)) return List.of();
+        List<String> args = new ArrayList<>();
+        ((Map<String, Object>) m).forEach((k, v) -> args.add(k + "=" + v));
+        return args;
+    }
+
+    private static String sessionKey(String sessionId) { return "upload-session:" + sessionId; }
+
+    /**
+     * Prepara a retoma de uma sessão: descarta bytes para além do offset pedido e
+     * recarrega o cabeçalho já gravado para a validação de formato.
+     */
+    private static long resumeSession(Path part, long offset, ByteArrayOutputStream headSniff) throws IOException {
+        long have = Files.exists(part) ? Files.size(part) : 0;
+        if (offset > have)
+            throw new IllegalArgumentException("Offset " + offset + " para além do confirmado (" + have + ")");
+        if (offset < have) {
+            try (var ch = java.nio.channels.FileChannel.open(part, StandardOpenOption.WRITE)) {
+                ch.truncate(offset);
+            }
+        }
+        if (offset > 0) {
+            try (InputStream in = Files.newInputStream(part)) {
+                headSniff.write(in.readNBytes(PROBE_LIMIT));
+            }
+        }
+        return offset;
+    }
+
+    private static int crc32(byte[] data) {
+        java.util.zip.CRC32 crc = new java.util.zip.CRC32();
+        crc.update(data);
+        return (int) crc.getValue();
+    }
+
     private static String detectImageExtension(byte[] head) {
         if (head == null || head.length < 4) return null;
 
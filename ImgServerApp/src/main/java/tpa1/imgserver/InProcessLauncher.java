@@ -0,0 +1,145 @@
+package tpa1.imgserver;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Executa o worker (tpa1.worker.Main, ou -DworkerClass) numa thread desta JVM em vez de
+ * num container: o ImageProcessorApp tem de estar no classpath. Usado pelo harness local
+ * e para correr um ImgServer sem Docker (-Dlauncher=inprocess).
+ */
+public class InProcessLauncher implements WorkerLauncher {
+
+    private record Run(String requestId, String owner, Thread thread, Long[] exit) {}
+
+    private final Map<String, Run> runs = new ConcurrentHashMap<>();
+    private final AtomicLong seq = new AtomicLong();
+    private volatile Method workerMain;
+    private volatile Method workerStream;
+
+    // chunks do upload (64 KB) em trânsito antes de o upload abrandar
+    private static final int PIPE_CHUNKS = Integer.getInteger("streamPipeChunks", 256);
+
+    @Override
+    public String launchResize(String imageName, String hostVolumePath, String inRel, String outRel, double pct,
+                               List<String> encoderArgs, String requestId, String owner) {
+        Method main = workerMain();
+        List<String> args = new ArrayList<>(List.of(hostVolumePath + "/input/" + inRel,
+                hostVolumePath + "/output/" + outRel, String.valueOf(pct)));
+        args.addAll(encoderArgs);
+
+        String id = "inproc-" + seq.incrementAndGet();
+        Long[] exit = {null};
+        Thread t = Thread.ofPlatform().name("worker-" + requestId).daemon(true).unstarted(() -> {
+            long code = 0;
+            try {
+                main.invoke(null, (Object) args.toArray(String[]::new));
+            } catch (InvocationTargetException | IllegalAccessException e) {
+                code = 1;
+            }
+            exit[0] = code;
+        });
+        runs.put(id, new Run(requestId, owner, t, exit));
+        t.start();
+        return id;
+    }
+
+    /**
+     * Worker em streaming: chama resizeStream(InputStream, String, double, String[]) da mesma
+     * classe, que descodifica as linhas à medida que os chunks do upload entram no pipe.
+     */
+    @Override
+    public StreamingRun launchStreaming(String hostVolumePath, String outRel, double pct,
+                                        List<String> encoderArgs, String requestId, String owner) {
+        Method resize = workerStream();
+        if (resize == null) return null;
+        ChunkPipe pipe = new ChunkPipe(PIPE_CHUNKS);
+        String out = hostVolumePath + "/output/" + outRel;
+        String[] opts = encoderArgs.toArray(String[]::new);
+
+        String id = "inproc-" + seq.incrementAndGet();
+        Long[] exit = {null};
+        Thread t = Thread.ofPlatform().name("worker-stream-" + requestId).daemon(true).unstarted(() -> {
+            long code = 0;
+            try (InputStream in = pipe.input()) {
+                resize.invoke(null, in, out, pct, opts);
+            } catch (InvocationTargetException | IllegalAccessException | IOException e) {
+                code = 1;
+            }
+            exit[0] = code;
+        });
+        runs.put(id, new Run(requestId, owner, t, exit));
+        t.start();
+        return new StreamingRun(id, pipe);
+    }
+
+    private Method workerStream() {
+        if (workerStream == null) {
+            try {
+                workerStream = workerMain().getDeclaringClass().getMethod("resizeStream",
+                        InputStream.class, String.class, double.class, String[].class);
+            } catch (NoSuchMethodException e) {
+                return null; // worker sem modo streaming
+            }
+        }
+        return workerStream;
+    }
+
+    private Method workerMain() {
+        if (workerMain == null) {
+            String cls = System.getProperty("workerClass", "tpa1.worker.Main");
+            try {
+                Class<?> worker = Class.forName(cls);
+                workerMain = worker.getMethod("main", String[].class);
+                try {
+                    // jobs partilham esta JVM: o worker pode reutilizar buffers entre imagens
+                    worker.getMethod("enablePooling").invoke(null);
+                } catch (NoSuchMethodException e) {
+                    // worker sem pool
+                }
+            } catch (ReflectiveOperationException e) {
+                throw new RuntimeException("Worker " + cls + " não está no classpath", e);
+            }
+        }
+        return workerMain;
+    }
+
+    @Override
+    public boolean isRunning(String containerId) {
+        Run r = runs.get(containerId);
+        return r != null && r.thread().isAlive();
+    }
+
+    @Override
+    public Long exitCode(String containerId) {
+        Run r = runs.get(containerId);
+        return r == null || r.thread().isAlive() ? null : r.exit()[0];
+    }
+
+    @Override
+    public Long awaitExit(String containerId) throws InterruptedException {
+        Run r = runs.get(containerId);
+        if (r == null) return null;
+        r.thread().join();
+        return r.exit()[0];
+    }
+
+    @Override
+    public Map<String, JobContainer> listByOwner(String owner) {
+        Map<String, JobContainer> byReq = new HashMap<>();
+        runs.forEach((id, r) -> {
+            if (r.owner().equals(owner)) byReq.put(r.requestId(), new JobContainer(id, r.requestId(), r.thread().isAlive()));
+        });
+        return byReq;
+    }
+
+    @Override
+    public void remove(String containerId) {
+        runs.remove(containerId); // a thread não é interrompida: termina sozinha
+    }
+}
@@ -1,17 +1,17 @@
 package tpa1.imgserver;
 
 import io.grpc.Server;
-import io.grpc.ServerBuilder;
 import io.grpc.ManagedChannel;
 import io.grpc.LoadBalancerRegistry;
 import io.grpc.internal.PickFirstLoadBalancerProvider;
-import io.grpc.netty.shaded.io.grpc.netty.NettyChannelBuilder;
 
-import java.net.InetSocketAddress;
-import java.nio.file.*;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
 
 import manager_server.ManagerServer;
-import manager_server.ManagerServerRegistrationServiceGrpc;
+import tpa1.clientlib.GrpcTransport;
 
 /**
  * Main do ImgServerApp
@@ -19,6 +19,7 @@ import manager_server.ManagerServerRegistrationServiceGrpc;
  *  - Registar este ImgServer no ManagerServer
  *  - Iniciar servidor gRPC local (serviço ImgServerService)
  *  - Conectar ao Redis e preparar DockerLauncher
+ *    (-Dlauncher=inprocess e -DstateStore=memory permitem correr sem Docker nem Redis)
  */
 public class Main {
     static boolean DEBUG = Boolean.parseBoolean(System.getProperty("debug", "false"));
@@ -42,50 +43,63 @@ public class Main {
         LoadBalancerRegistry.getDefaultRegistry().register(new PickFirstLoadBalancerProvider());
         debug("[DEBUG] Registrado manualmente PickFirstLoadBalancerProvider");
 
-        // === 4) Conecta ao ManagerServer via TCP direto ===
-        ManagedChannel ch = NettyChannelBuilder
-                .forAddress(new InetSocketAddress(managerIp, managerPort))
-                .usePlaintext()
-                .build();
-
-        var regStub = ManagerServerRegistrationServiceGrpc.newBlockingStub(ch);
-        ManagerServer.RegisterImgServerResponse regResp = regStub.registerImgServer(
-                ManagerServer.RegisterImgServerRequest.newBuilder()
-                        .setImgServerIp(ip)
-                        .setImgServerPort(port)
-                        .build()
-        );
-        ch.shutdownNow();
-
-        int redisPort = regResp.getRedisPort();
-        String redisHost = managerIp; // Redis vive junto ao ManagerServer
-        System.out.printf("[ImgServer] Registado com sucesso. Redis em %s:%d\n", redisHost, redisPort);
-
-        // === 5) Cria diretórios do volume local (input/output) ===
+        // === 4) Conecta ao ManagerServer via TCP direto e regista-se ===
+        ManagedChannel ch = GrpcTransport.channel(managerIp, managerPort).build();
+        ImgServerNode node = new ImgServerNode(ip, port, Integer.parseInt(System.getProperty("weight", "1")), ch);
+        ManagerServer.RegisterImgServerResponse regResp = node.register(false);
+
+        List<ShardedStateStore.Shard> shards = stateShards(regResp, managerIp);
+        String redisHost = shards.get(0).host();
+        int redisPort = shards.get(0).port();
+        System.out.printf("[ImgServer] Registado com sucesso. Redis em %s:%d (%d shards)\n", redisHost, redisPort, shards.size());
+
+        // === 5) Volume local (input/output) ===
         Path volBase = Paths.get(System.getProperty("volumeBase",
                 System.getProperty("user.home") + "/shared_volume"));
-        Path inputDir = volBase.resolve("input");
-        Path outputDir = volBase.resolve("output");
-        Files.createDirectories(inputDir);
-        Files.createDirectories(outputDir);
 
         // === 6) Inicializa Docker e Redis ===
-        DockerLauncher docker = new DockerLauncher();
-        StateStore store = new StateStore(redisHost, redisPort);
-
-        // === 7) Cria e inicia o servidor gRPC ===
-        ImgServerService svc = new ImgServerService(ip, port, inputDir, outputDir, docker, store);
-        Server server = ServerBuilder.forPort(port)
-                .addService(svc)
-                .build()
-                .start();
+        WorkerLauncher docker = "inprocess".equals(System.getProperty("launcher", "docker"))
+                ? new InProcessLauncher() : new DockerLauncher();
+        long outputRetentionSec = Long.parseLong(System.getProperty("outputRetentionSec", "86400"));
+        long jobTtlSec = Long.parseLong(System.getProperty("jobTtlSec", "86400"));
+        if (outputRetentionSec > 0 && (jobTtlSec <= 0 || jobTtlSec > outputRetentionSec)) {
+            // um registo DONE não pode sobreviver ao seu output (o cliente receberia "ficheiro não encontrado")
+            System.out.printf("[ImgServer] jobTtlSec limitado à retenção dos outputs (%ds)%n", outputRetentionSec);
+            jobTtlSec = outputRetentionSec;
+        }
+        StateStore store;
+        if ("memory".equals(System.getProperty("stateStore", "redis"))) {
+            store = new MemoryStateStore();
+        } else if (shards.size() == 1 && shards.get(0).replicas().isEmpty()) {
+            store = new RedisStateStore(redisHost, redisPort, jobTtlSec);
+        } else {
+            ShardedStateStore sharded = new ShardedStateStore(shards, jobTtlSec);
+            System.out.println("[ImgServer] Estado distribuído: " + sharded.describe());
+            store = sharded;
+        }
+
+        // === 7) Servidor gRPC, pool de work stealing, heartbeat ao Manager e escalonador ===
+        Server server = node.start(volBase, store, docker, Integer.parseInt(System.getProperty("maxJobs",
+                String.valueOf(Runtime.getRuntime().availableProcessors()))));
 
         System.out.printf("[ImgServer] A escutar em %s:%d (Redis=%s:%d, volume=%s)\n",
                 ip, port, redisHost, redisPort, volBase);
+        System.out.println("[ImgServer] gRPC: " + GrpcTransport.describe());
 
         server.awaitTermination();
     }
 
+    /** Shards do estado anunciados pelo Manager (Managers antigos só indicam o porto do Redis). */
+    @SuppressWarnings("deprecation") // redisPort: compatibilidade com Managers antigos
+    static List<ShardedStateStore.Shard> stateShards(ManagerServer.RegisterImgServerResponse regResp, String managerIp) {
+        List<ShardedStateStore.Shard> shards = new ArrayList<>();
+        for (ManagerServer.StateStoreEndpoint e : regResp.getStateStoresList()) {
+            shards.add(new ShardedStateStore.Shard(e.getHost(), e.getPort(), e.getReplicasList()));
+        }
+        if (shards.isEmpty()) shards.add(new ShardedStateStore.Shard(managerIp, regResp.getRedisPort(), List.of()));
+        return shards;
+    }
+
     static void debug(String msg) {
         if (DEBUG) System.out.println("[DEBUG] " + msg);
     }
@@ -0,0 +1,50 @@
+package tpa1.imgserver;
+
+import manager_server.ManagerServer;
+import manager_server.ManagerServerRegistrationServiceGrpc;
+
+import io.grpc.ManagedChannel;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Repete o registo no ManagerServer a cada intervalo. O Manager retira da lista os
+ * ImgServers sem heartbeat há mais de -DimgServerTtlSec, por isso um nó que morra sem
+ * avisar deixa de receber clientes; um Manager reiniciado volta a conhecer os nós vivos.
+ */
+public class ManagerHeartbeat {
+
+    private final ManagerServerRegistrationServiceGrpc.ManagerServerRegistrationServiceBlockingStub stub;
+    private final ManagerServer.RegisterImgServerRequest request;
+    private final ScheduledExecutorService exec = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "manager-heartbeat");
+        t.setDaemon(true);
+        return t;
+    });
+    private volatile boolean failing;
+
+    public ManagerHeartbeat(ManagedChannel managerChannel, ManagerServer.RegisterImgServerRequest request) {
+        this.stub = ManagerServerRegistrationServiceGrpc.newBlockingStub(managerChannel);
+        this.request = request;
+    }
+
+    public void start(long intervalSec) {
+        exec.scheduleWithFixedDelay(this::beat, intervalSec, intervalSec, TimeUnit.SECONDS);
+    }
+
+    public void stop() { exec.shutdownNow(); }
+
+    private void beat() {
+        try {
+            stub.withDeadlineAfter(5, TimeUnit.SECONDS).registerImgServer(request);
+            if (failing) System.out.println("[ImgServer] Heartbeat ao Manager restabelecido");
+            failing = false;
+        } catch (RuntimeException e) {
+            // só regista a primeira falha de uma sequência
+            if (!failing) System.out.println("[ImgServer] Heartbeat ao Manager falhou: " + e.getMessage());
+            failing = true;
+        }
+    }
+}
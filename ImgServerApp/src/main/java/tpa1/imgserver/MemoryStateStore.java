@@ -0,0 +1,203 @@
+package tpa1.imgserver;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.util.*;
+
+/**
+ * StateStore em memória, com a mesma semântica do RedisStateStore (filas WFQ, quotas,
+ * registos guardados como JSON para que cada get devolva uma cópia).
+ * Partilhado por vários ImgServers na mesma JVM (harness local, sem Redis); sem TTL nos
+ * registos, mas os nós sem heartbeat há -DnodeTtlSec são retirados como no Redis.
+ */
+public class MemoryStateStore implements StateStore {
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final Map<String, String> records = new HashMap<>();
+    private final Map<String, Set<String>> nodeJobs = new HashMap<>();
+    private final Set<String> nodes = new LinkedHashSet<>();
+
+    private final Map<String, Map<String, Double>> queues = new HashMap<>();       // nó → requestId → F
+    private final Map<String, Double> vtime = new HashMap<>();                      // nó → V
+    private final Map<String, Map<String, Double>> lastFinish = new HashMap<>();   // nó → cliente → F
+    private final Map<String, String> jobClient = new HashMap<>();                  // requestId → cliente
+    private final Map<String, Integer> inflight = new HashMap<>();                  // cliente → jobs pendentes
+    private final Map<String, Map<String, Integer>> running = new HashMap<>();     // nó → cliente → a correr
+    private final Map<String, Set<String>> runningJobs = new HashMap<>();           // nó → requestIds a correr
+    private final Map<String, Long> alive = new HashMap<>();                        // nó → último heartbeat (ms)
+    private final long nodeTtlMs = Long.getLong("nodeTtlSec", 30) * 1000L;
+
+    @Override
+    public synchronized void put(String requestId, Map<String, Object> json) {
+        try {
+            records.put(requestId, mapper.writeValueAsString(json));
+        } catch (JsonProcessingException e) {
+            throw new RuntimeException("Erro ao serializar JSON", e);
+        }
+    }
+
+    @Override
+    public synchronized Map<String, Object> get(String requestId) {
+        String v = records.get(requestId);
+        if (v == null) return null;
+        try {
+            return mapper.readValue(v, new TypeReference<Map<String, Object>>() {});
+        } catch (JsonProcessingException e) {
+            throw new RuntimeException("Erro ao desserializar JSON", e);
+        }
+    }
+
+    @Override
+    public synchronized void delete(String requestId) {
+        records.remove(requestId);
+    }
+
+    @Override
+    public synchronized void trackJob(String node, String requestId) {
+        nodeJobs.computeIfAbsent(node, k -> new HashSet<>()).add(requestId);
+    }
+
+    @Override
+    public synchronized void untrackJob(String node, String requestId) {
+        Set<String> s = nodeJobs.get(node);
+        if (s != null) s.remove(requestId);
+    }
+
+    @Override
+    public synchronized Set<String> jobsOf(String node) {
+        return new HashSet<>(nodeJobs.getOrDefault(node, Set.of()));
+    }
+
+    @Override
+    public synchronized void registerNode(String node) {
+        heartbeat(node);
+    }
+
+    @Override
+    public synchronized boolean heartbeat(String node) {
+        alive.put(node, System.currentTimeMillis());
+        return nodes.add(node);
+    }
+
+    @Override
+    public synchronized List<String> reapDeadNodes() {
+        List<String> reaped = new ArrayList<>();
+        for (String n : new ArrayList<>(nodes)) {
+            if (isAlive(n)) continue;
+            Set<String> jobs = new HashSet<>(queues.getOrDefault(n, Map.of()).keySet());
+            jobs.addAll(runningJobs.getOrDefault(n, Set.of()));
+            for (String rid : jobs) {
+                String c = jobClient.remove(rid);
+                if (c != null && inflight.merge(c, -1, Integer::sum) <= 0) inflight.remove(c);
+            }
+            queues.remove(n);
+            vtime.remove(n);
+            lastFinish.remove(n);
+            running.remove(n);
+            runningJobs.remove(n);
+            alive.remove(n);
+            nodes.remove(n);
+            reaped.add(n);
+        }
+        return reaped;
+    }
+
+    private boolean isAlive(String node) {
+        Long t = alive.get(node);
+        return t != null && System.currentTimeMillis() - t <= nodeTtlMs;
+    }
+
+    @Override
+    public synchronized Set<String> nodes() {
+        return new LinkedHashSet<>(nodes);
+    }
+
+    @Override
+    public synchronized void enqueue(String node, String requestId, String client, double weight, double cost) {
+        if (queues.getOrDefault(node, Map.of()).containsKey(requestId)) return; // já em fila: mantém a posição
+        double v = vtime.getOrDefault(node, 0.0);
+        Map<String, Double> last = lastFinish.computeIfAbsent(node, k -> new HashMap<>());
+        double f = Math.max(v, last.getOrDefault(client, 0.0)) + cost / Math.max(weight, 1e-6);
+        last.put(client, f);
+        queues.computeIfAbsent(node, k -> new HashMap<>()).put(requestId, f);
+        if (jobClient.putIfAbsent(requestId, client) == null) inflight.merge(client, 1, Integer::sum);
+    }
+
+    @Override
+    public String pollOwn(String node, int quota, int scan) {
+        return pop(node, node, quota, scan, true);
+    }
+
+    @Override
+    public String steal(String victim, String self, int quota, int scan) {
+        return pop(victim, self, quota, scan, false);
+    }
+
+    private synchronized String pop(String queueNode, String runNode, int quota, int scan, boolean own) {
+        Map<String, Double> q = queues.get(queueNode);
+        if (q == null || q.isEmpty()) return null;
+        Comparator<Map.Entry<String, Double>> byFinish = Map.Entry.comparingByValue();
+        List<Map.Entry<String, Double>> items = q.entrySet().stream()
+                .sorted(own ? byFinish : byFinish.reversed())
+                .limit(scan)
+                .toList();
+        for (Map.Entry<String, Double> e : items) {
+            String rid = e.getKey();
+            String c = jobClient.computeIfAbsent(rid, k -> "anonymous");
+            int busy = 0;
+            if (quota > 0) {
+                for (String n : nodes) {
+                    if (n.equals(runNode) || isAlive(n)) busy += running.getOrDefault(n, Map.of()).getOrDefault(c, 0);
+                }
+            }
+            if (quota <= 0 || busy < quota) {
+                q.remove(rid);
+                running.computeIfAbsent(runNode, k -> new HashMap<>()).merge(c, 1, Integer::sum);
+                runningJobs.computeIfAbsent(runNode, k -> new HashSet<>()).add(rid);
+                if (own) vtime.put(queueNode, e.getValue());
+                return rid;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public synchronized void release(String node, String requestId) {
+        Set<String> jobs = runningJobs.get(node);
+        if (jobs != null) jobs.remove(requestId);
+        String c = jobClient.remove(requestId);
+        if (c == null) return;
+        Map<String, Integer> r = running.get(node);
+        if (r != null && r.merge(c, -1, Integer::sum) <= 0) r.remove(c);
+        if (inflight.merge(c, -1, Integer::sum) <= 0) inflight.remove(c);
+    }
+
+    @Override
+    public synchronized boolean acquire(String node, String requestId, String client, int quota) {
+        if (quota > 0) {
+            int busy = 0;
+            for (String n : nodes) {
+                if (n.equals(node) || isAlive(n)) busy += running.getOrDefault(n, Map.of()).getOrDefault(client, 0);
+            }
+            if (busy >= quota) return false;
+        }
+        if (jobClient.putIfAbsent(requestId, client) == null) inflight.merge(client, 1, Integer::sum);
+        running.computeIfAbsent(node, k -> new HashMap<>()).merge(client, 1, Integer::sum);
+        runningJobs.computeIfAbsent(node, k -> new HashSet<>()).add(requestId);
+        return true;
+    }
+
+    @Override
+    public synchronized void resetRunning(String node, Map<String, String> jobs) {
+        running.remove(node);
+        runningJobs.remove(node);
+        jobs.forEach((rid, c) -> acquire(node, rid, c, 0));
+    }
+
+    @Override
+    public synchronized long queueLength(String node) {
+        return queues.getOrDefault(node, Map.of()).size();
+    }
+}
@@ -0,0 +1,99 @@
+package tpa1.imgserver;
+
+import com.google.protobuf.ByteString;
+import img_client.ImgClient.FetchInputRequest;
+import img_client.ImgClient.ImageChunk;
+import img_client.ImgServerPeerServiceGrpc;
+import io.grpc.ManagedChannel;
+import io.grpc.Status;
+import tpa1.clientlib.GrpcTransport;
+import tpa1.clientlib.PayloadCompression;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.*;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Transferência de inputs entre ImgServers (work stealing):
+ *  - Lado servidor: entrega o input de um job que este nó recebeu.
+ *  - Lado cliente: vai buscar o input de um job roubado ao nó que o recebeu.
+ */
+public class PeerService extends ImgServerPeerServiceGrpc.ImgServerPeerServiceImplBase {
+
+    private final Path inputDir;
+    private final StateStore store;
+    private final Map<String, ManagedChannel> channels = new ConcurrentHashMap<>();
+    // tempo máximo de uma transferência: um par parado não prende um slot do escalonador
+    private static final long FETCH_TIMEOUT_SEC = Long.parseLong(System.getProperty("peerFetchTimeoutSec", "60"));
+
+    public PeerService(Path inputDir, StateStore store) {
+        this.inputDir = inputDir;
+        this.store = store;
+    }
+
+    @Override
+    public void fetchInput(FetchInputRequest request, StreamObserver<ImageChunk> resp) {
+        Map<String, Object> meta = store.get(request.getRequestId());
+        if (meta == null) {
+            resp.onError(Status.NOT_FOUND.withDescription("requestId desconhecido").asRuntimeException());
+            return;
+        }
+        Path in = inputDir.resolve(relInput(meta));
+        String codec = PayloadCompression.forFile(in);
+        if (!PayloadCompression.NONE.equals(codec) && resp instanceof ServerCallStreamObserver<?> call) {
+            call.setCompression(codec);
+        }
+        try (InputStream is = Files.newInputStream(in)) {
+            byte[] buf = new byte[64 * 1024];
+            int n;
+            while ((n = is.read(buf)) != -1) {
+                resp.onNext(ImageChunk.newBuilder().setData(ByteString.copyFrom(buf, 0, n)).build());
+            }
+            resp.onCompleted();
+            System.out.printf("[Peer] Input entregue (%s)%n", request.getRequestId());
+        } catch (NoSuchFileException e) {
+            resp.onError(Status.NOT_FOUND.withDescription("Input não encontrado").asRuntimeException());
+        } catch (IOException e) {
+            resp.onError(Status.INTERNAL.withDescription(e.getMessage()).asRuntimeException());
+        }
+    }
+
+    /**
+     * Copia o input de requestId do nó ip:port para o mesmo caminho relativo neste volume.
+     * NoSuchFileException se o par já não tiver o input (ou o job); outras IOException são
+     * transitórias (par em baixo, lento ou a reiniciar).
+     */
+    public Path fetchFrom(String ip, int port, String requestId, Map<String, Object> meta) throws IOException {
+        ManagedChannel ch = channels.computeIfAbsent(ip + ":" + port,
+                k -> GrpcTransport.channel(ip, port).build());
+        var stub = ImgServerPeerServiceGrpc.newBlockingStub(ch)
+                .withDeadlineAfter(FETCH_TIMEOUT_SEC, TimeUnit.SECONDS);
+
+        Path target = VolumeLayout.resolve(inputDir, relInput(meta));
+        Path tmp = target.resolveSibling(target.getFileName() + ".part");
+        try (OutputStream os = Files.newOutputStream(tmp,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            Iterator<ImageChunk> it = stub.fetchInput(FetchInputRequest.newBuilder().setRequestId(requestId).build());
+            while (it.hasNext()) it.next().getData().writeTo(os);
+        } catch (RuntimeException e) {
+            Files.deleteIfExists(tmp);
+            if (Status.fromThrowable(e).getCode() == Status.Code.NOT_FOUND) {
+                throw new NoSuchFileException(requestId, null, ip + ":" + port + ": " + e.getMessage());
+            }
+            throw new IOException("Falha a obter input de " + ip + ":" + port + ": " + e.getMessage(), e);
+        }
+        return Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static String relInput(Map<String, Object> meta) {
+        String p = String.valueOf(meta.get("inputFile"));
+        return p.startsWith("/images/input/") ? p.substring("/images/input/".length()) : p;
+    }
+}
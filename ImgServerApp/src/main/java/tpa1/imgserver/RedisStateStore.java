@@ -0,0 +1,340 @@
+package tpa1.imgserver;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+/** StateStore sobre Redis (partilhado por todos os ImgServers). */
+public class RedisStateStore implements StateStore {
+    static final String NODES_KEY = "img-nodes";
+    // ligações por instância: o padrão do Jedis (8) enfileira os jobs e handlers concorrentes
+    private static final int POOL_SIZE = Integer.getInteger("redisPoolSize", 64);
+    // nó sem heartbeat há mais do que isto é dado como morto (ver reapDeadNodes)
+    private static final long NODE_TTL_SEC = Long.getLong("nodeTtlSec", 30);
+
+    private final JedisPool jedisPool;
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final long ttlSeconds; // <= 0 → sem expiração
+
+    public RedisStateStore(String host, int port) {
+        this(host, port, 0);
+    }
+
+    public RedisStateStore(String host, int port, long ttlSeconds) {
+        JedisPoolConfig cfg = new JedisPoolConfig();
+        cfg.setMaxTotal(POOL_SIZE);
+        cfg.setMaxIdle(POOL_SIZE);
+        this.jedisPool = new JedisPool(cfg, host, port);
+        this.ttlSeconds = ttlSeconds;
+    }
+
+    @Override
+    public void put(String requestId, Map<String, Object> json) {
+        try (Jedis j = jedisPool.getResource()) {
+            String v = mapper.writeValueAsString(json);
+            // cada escrita renova o TTL: o registo expira ttlSeconds após a última alteração
+            if (ttlSeconds > 0) j.setex(requestId, ttlSeconds, v);
+            else j.set(requestId, v);
+        } catch (JsonProcessingException e) {
+            throw new RuntimeException("Erro ao serializar JSON para Redis", e);
+        }
+    }
+
+    @Override
+    public Map<String, Object> get(String requestId) {
+        try (Jedis j = jedisPool.getResource()) {
+            String v = j.get(requestId);
+            if (v == null) return null;
+            return mapper.readValue(v, new com.fasterxml.jackson.core.type.TypeReference<Map<String, Object>>() {});
+        } catch (IOException e) {
+            throw new RuntimeException("Erro ao desserializar JSON do Redis", e);
+        }
+    }
+
+    // ---- índice de jobs por ImgServer (usado na reconciliação após restart) ----
+
+    @Override
+    public void trackJob(String node, String requestId) {
+        try (Jedis j = jedisPool.getResource()) {
+            j.sadd(nodeKey(node), requestId);
+        }
+    }
+
+    @Override
+    public void untrackJob(String node, String requestId) {
+        try (Jedis j = jedisPool.getResource()) {
+            j.srem(nodeKey(node), requestId);
+        }
+    }
+
+    @Override
+    public Set<String> jobsOf(String node) {
+        try (Jedis j = jedisPool.getResource()) {
+            return j.smembers(nodeKey(node));
+        }
+    }
+
+    static String nodeKey(String node) { return "node-jobs:" + node; }
+
+    // ---- filas de jobs pendentes (uma por ImgServer, partilhadas via Redis) ----
+
+    @Override
+    public void registerNode(String node) {
+        heartbeat(node);
+    }
+
+    /** Renova a marca de vida do nó; true se o nó (re)entrou no conjunto (ex.: depois de ser dado como morto). */
+    @Override
+    public boolean heartbeat(String node) {
+        try (Jedis j = jedisPool.getResource()) {
+            j.setex(aliveKey(node), NODE_TTL_SEC, "1");
+            return j.sadd(NODES_KEY, node) == 1;
+        }
+    }
+
+    @Override
+    public List<String> reapDeadNodes() {
+        try (Jedis j = jedisPool.getResource()) {
+            return strings(j.eval(REAP, List.of(NODES_KEY, JOB_CLIENT_KEY, INFLIGHT_KEY), List.of()));
+        }
+    }
+
+    /** Lista devolvida por um script (o Jedis entrega uma tabela Lua vazia como mapa vazio). */
+    @SuppressWarnings("unchecked")
+    static List<String> strings(Object r) {
+        return r instanceof List<?> l ? (List<String>) l : List.of();
+    }
+
+    @Override
+    public Set<String> nodes() {
+        try (Jedis j = jedisPool.getResource()) {
+            return j.smembers(NODES_KEY);
+        }
+    }
+
+    // ---- fair-share: fila por nó ordenada por tempo virtual de fim (WFQ) ----
+    //
+    // wfq:<node>       ZSET requestId → tempo de fim F = max(V, último F do cliente) + custo / peso
+    // wfq-vtime:<node> tempo virtual V do nó (F do último job retirado pelo dono)
+    // wfq-finish:<node> HASH cliente → último F atribuído
+    // job-client       HASH requestId → cliente (jobs ainda não terminados)
+    // client-inflight  HASH cliente → jobs em fila ou a correr em todo o cluster
+    // running:<node>   HASH cliente → jobs a correr neste nó (quota = soma sobre os nós vivos)
+    // running-jobs:<node> SET requestIds a correr neste nó (devolvidos se o nó morrer)
+    // node-alive:<node> marca com TTL renovada pelo heartbeat do nó
+    //
+    // Os scripts acedem a running:<n> de todos os nós: requer Redis standalone (ou todas
+    // estas chaves no mesmo slot).
+
+    private static final String ENQUEUE = """
+            local queued = redis.call('ZSCORE', KEYS[1], ARGV[1])
+            if queued then return queued end
+            local v = tonumber(redis.call('GET', KEYS[2]) or '0')
+            local last = tonumber(redis.call('HGET', KEYS[3], ARGV[2]) or '0')
+            local f = math.max(v, last) + tonumber(ARGV[3])
+            redis.call('HSET', KEYS[3], ARGV[2], tostring(f))
+            redis.call('ZADD', KEYS[1], f, ARGV[1])
+            if redis.call('HSETNX', KEYS[4], ARGV[1], ARGV[2]) == 1 then
+              redis.call('HINCRBY', KEYS[5], ARGV[2], 1)
+            end
+            return tostring(f)
+            """;
+
+    /** Percorre a fila pela ordem pedida e retira o primeiro job cujo cliente está abaixo da quota. */
+    private static final String POP = """
+            local items
+            if ARGV[3] == 'min' then
+              items = redis.call('ZRANGE', KEYS[1], 0, tonumber(ARGV[2]) - 1, 'WITHSCORES')
+            else
+              items = redis.call('ZREVRANGE', KEYS[1], 0, tonumber(ARGV[2]) - 1, 'WITHSCORES')
+            end
+            local quota = tonumber(ARGV[1])
+            local nodes = redis.call('SMEMBERS', KEYS[4])
+            for i = 1, #items, 2 do
+              local rid = items[i]
+              local c = redis.call('HGET', KEYS[3], rid)
+              if not c then
+                c = 'anonymous'
+                redis.call('HSET', KEYS[3], rid, c)
+              end
+              local busy = 0
+              if quota > 0 then
+                for _, n in ipairs(nodes) do
+                  if n == ARGV[4] or redis.call('EXISTS', 'node-alive:' .. n) == 1 then
+                    busy = busy + tonumber(redis.call('HGET', 'running:' .. n, c) or '0')
+                  end
+                end
+              end
+              if quota <= 0 or busy < quota then
+                redis.call('ZREM', KEYS[1], rid)
+                redis.call('HINCRBY', KEYS[5], c, 1)
+                redis.call('SADD', KEYS[6], rid)
+                if ARGV[3] == 'min' then redis.call('SET', KEYS[2], items[i + 1]) end
+                return rid
+              end
+            end
+            return false
+            """;
+
+    private static final String RELEASE = """
+            redis.call('SREM', KEYS[4], ARGV[1])
+            local c = redis.call('HGET', KEYS[1], ARGV[1])
+            if not c then return 0 end
+            redis.call('HDEL', KEYS[1], ARGV[1])
+            if redis.call('HINCRBY', KEYS[2], c, -1) <= 0 then redis.call('HDEL', KEYS[2], c) end
+            if redis.call('HINCRBY', KEYS[3], c, -1) <= 0 then redis.call('HDEL', KEYS[3], c) end
+            return 1
+            """;
+
+    /**
+     * Conta um job que corre neste nó sem passar pela fila (upload em streaming, reconciliação):
+     * com quota > 0 recusa (0) se o cliente já tiver quota jobs a correr nos nós vivos.
+     */
+    private static final String ACQUIRE = """
+            local quota = tonumber(ARGV[3])
+            if quota > 0 then
+              local busy = 0
+              for _, n in ipairs(redis.call('SMEMBERS', KEYS[5])) do
+                if n == ARGV[4] or redis.call('EXISTS', 'node-alive:' .. n) == 1 then
+                  busy = busy + tonumber(redis.call('HGET', 'running:' .. n, ARGV[2]) or '0')
+                end
+              end
+              if busy >= quota then return 0 end
+            end
+            if redis.call('HSETNX', KEYS[1], ARGV[1], ARGV[2]) == 1 then
+              redis.call('HINCRBY', KEYS[2], ARGV[2], 1)
+            end
+            redis.call('HINCRBY', KEYS[3], ARGV[2], 1)
+            redis.call('SADD', KEYS[4], ARGV[1])
+            return 1
+            """;
+
+    /**
+     * Nós sem heartbeat: devolve as contagens dos jobs em fila ou a correr neles (client-inflight
+     * e job-client) e apaga as suas filas e contadores. node-jobs:<node> fica, para que o nó,
+     * ao reiniciar, volte a pôr em fila os seus jobs.
+     */
+    private static final String REAP = """
+            local reaped = {}
+            for _, n in ipairs(redis.call('SMEMBERS', KEYS[1])) do
+              if redis.call('EXISTS', 'node-alive:' .. n) == 0 then
+                local jobs = redis.call('ZRANGE', 'wfq:' .. n, 0, -1)
+                for _, rid in ipairs(redis.call('SMEMBERS', 'running-jobs:' .. n)) do table.insert(jobs, rid) end
+                for _, rid in ipairs(jobs) do
+                  local c = redis.call('HGET', KEYS[2], rid)
+                  if c then
+                    redis.call('HDEL', KEYS[2], rid)
+                    if redis.call('HINCRBY', KEYS[3], c, -1) <= 0 then redis.call('HDEL', KEYS[3], c) end
+                  end
+                end
+                redis.call('DEL', 'wfq:' .. n, 'wfq-vtime:' .. n, 'wfq-finish:' .. n, 'running:' .. n, 'running-jobs:' .. n)
+                redis.call('SREM', KEYS[1], n)
+                table.insert(reaped, n)
+              end
+            end
+            return reaped
+            """;
+
+    static final String JOB_CLIENT_KEY = "job-client";
+    static final String INFLIGHT_KEY = "client-inflight";
+
+    /**
+     * Põe o job na fila do nó com o tempo de fim WFQ do cliente (custo / peso).
+     * Repetir o enqueue de um job já em fila (reconciliação) mantém a posição e não volta
+     * a cobrar o custo ao cliente.
+     */
+    @Override
+    public void enqueue(String node, String requestId, String client, double weight, double cost) {
+        try (Jedis j = jedisPool.getResource()) {
+            j.eval(ENQUEUE,
+                    List.of(queueKey(node), vtimeKey(node), finishKey(node), JOB_CLIENT_KEY, INFLIGHT_KEY),
+                    List.of(requestId, client, String.valueOf(cost / Math.max(weight, 1e-6))));
+        }
+    }
+
+    /** O dono consome o job com menor tempo de fim cujo cliente esteja abaixo da quota. */
+    @Override
+    public String pollOwn(String node, int quota, int scan) {
+        return pop(node, node, quota, scan, "min");
+    }
+
+    /** Um ImgServer ocioso rouba da cauda (maior tempo de fim) da fila de outro. */
+    @Override
+    public String steal(String victim, String self, int quota, int scan) {
+        return pop(victim, self, quota, scan, "max");
+    }
+
+    private String pop(String queueNode, String runNode, int quota, int scan, String end) {
+        try (Jedis j = jedisPool.getResource()) {
+            Object r = j.eval(POP,
+                    List.of(queueKey(queueNode), vtimeKey(queueNode), JOB_CLIENT_KEY, NODES_KEY,
+                            runningKey(runNode), runningJobsKey(runNode)),
+                    List.of(String.valueOf(quota), String.valueOf(scan), end, runNode));
+            return r == null ? null : r.toString();
+        }
+    }
+
+    /** Job terminou (ou foi descartado): liberta o slot do cliente neste nó e a contagem global. */
+    @Override
+    public void release(String node, String requestId) {
+        try (Jedis j = jedisPool.getResource()) {
+            j.eval(RELEASE, List.of(JOB_CLIENT_KEY, runningKey(node), INFLIGHT_KEY, runningJobsKey(node)),
+                    List.of(requestId));
+        }
+    }
+
+    @Override
+    public boolean acquire(String node, String requestId, String client, int quota) {
+        try (Jedis j = jedisPool.getResource()) {
+            Object r = j.eval(ACQUIRE,
+                    List.of(JOB_CLIENT_KEY, INFLIGHT_KEY, runningKey(node), runningJobsKey(node), NODES_KEY),
+                    List.of(requestId, client, String.valueOf(quota), node));
+            return r instanceof Long n && n == 1;
+        }
+    }
+
+    /** Reconstrói os jobs a correr deste nó (após restart, a partir dos containers vivos). */
+    @Override
+    public void resetRunning(String node, Map<String, String> jobs) {
+        try (Jedis j = jedisPool.getResource()) {
+            j.del(runningKey(node), runningJobsKey(node));
+        }
+        // a contagem do cliente pode ter sido devolvida se o nó foi dado como morto: volta a contar
+        jobs.forEach((rid, c) -> acquire(node, rid, c, 0));
+    }
+
+    @Override
+    public long queueLength(String node) {
+        try (Jedis j = jedisPool.getResource()) {
+            return j.zcard(queueKey(node));
+        }
+    }
+
+    static String queueKey(String node) { return "wfq:" + node; }
+    static String vtimeKey(String node) { return "wfq-vtime:" + node; }
+    static String finishKey(String node) { return "wfq-finish:" + node; }
+    static String runningKey(String node) { return "running:" + node; }
+    static String runningJobsKey(String node) { return "running-jobs:" + node; }
+    static String aliveKey(String node) { return "node-alive:" + node; }
+
+    /** Operação sobre uma ligação deste Redis (scripts do ShardedStateStore sobre as mesmas chaves). */
+    <T> T call(Function<Jedis, T> op) {
+        try (Jedis j = jedisPool.getResource()) {
+            return op.apply(j);
+        }
+    }
+
+    @Override
+    public void delete(String requestId) {
+        try (Jedis j = jedisPool.getResource()) {
+            j.del(requestId);
+        }
+    }
+}
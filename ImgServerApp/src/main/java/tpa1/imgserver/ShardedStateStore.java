@@ -0,0 +1,365 @@
+package tpa1.imgserver;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+/**
+ * StateStore sobre vários Redis independentes (sharding do lado do cliente):
+ *  - registos dos jobs, sessões de upload e job-client (requestId → cliente) no shard
+ *    hash(requestId) % N;
+ *  - chaves por nó (wfq:*, running:*, running-jobs:*, node-jobs:*) no shard hash(nó) % N,
+ *    para que a fila de cada ImgServer não dependa de um Redis comum;
+ *  - no primeiro shard só o conjunto de nós (img-nodes, node-alive:*) e os contadores por
+ *    cliente: client-inflight e client-running (jobs a correr no cluster, para as quotas);
+ *  - peek() lê de uma réplica do shard (round-robin) e recorre ao primário se a réplica
+ *    falhar ou ainda não tiver o registo.
+ *
+ * Cada script Lua toca só num shard; o pop junta-os por passos: reserva o slot do cliente
+ * (client-running), retira o job da fila e conta-o no nó que o corre, desfazendo a reserva
+ * se outro nó levar o job entretanto. Diferenças em relação ao RedisStateStore:
+ *  - um nó morto conta para as quotas até ser retirado (reapDeadNodes), não só até o seu
+ *    node-alive expirar;
+ *  - se um ImgServer morrer a meio de um destes passos, uma reserva pode ficar contada até
+ *    ao próximo resetRunning/reap do nó.
+ *
+ * Mudar o número de shards redistribui os registos e as filas existentes: fazê-lo com o
+ * cluster parado (ou esperar que expirem, -DjobTtlSec).
+ */
+public class ShardedStateStore implements StateStore {
+
+    /** Shard: primário (leituras e escritas) e réplicas só de leitura ("host:porta"). */
+    public record Shard(String host, int port, List<String> replicas) {}
+
+    private final RedisStateStore[] primaries;
+    private final RedisStateStore[][] replicas;
+    private final RedisStateStore coord; // conjunto de nós e contadores por cliente
+    private final AtomicInteger rr = new AtomicInteger();
+
+    public ShardedStateStore(List<Shard> shards, long ttlSeconds) {
+        if (shards.isEmpty()) throw new IllegalArgumentException("Sem shards de estado");
+        primaries = new RedisStateStore[shards.size()];
+        replicas = new RedisStateStore[shards.size()][];
+        for (int i = 0; i < shards.size(); i++) {
+            Shard s = shards.get(i);
+            primaries[i] = new RedisStateStore(s.host(), s.port(), ttlSeconds);
+            replicas[i] = new RedisStateStore[s.replicas().size()];
+            for (int k = 0; k < s.replicas().size(); k++) {
+                String[] hp = s.replicas().get(k).split(":");
+                replicas[i][k] = new RedisStateStore(hp[0], hp.length > 1 ? Integer.parseInt(hp[1]) : 6379, ttlSeconds);
+            }
+        }
+        coord = primaries[0];
+    }
+
+    private int shard(String key) {
+        CRC32 crc = new CRC32();
+        crc.update(key.getBytes(StandardCharsets.UTF_8));
+        return (int) (crc.getValue() % primaries.length);
+    }
+
+    // ---- registos dos jobs: distribuídos pelos shards ----
+
+    @Override
+    public void put(String requestId, Map<String, Object> json) {
+        primaries[shard(requestId)].put(requestId, json);
+    }
+
+    @Override
+    public Map<String, Object> get(String requestId) {
+        return primaries[shard(requestId)].get(requestId);
+    }
+
+    @Override
+    public Map<String, Object> peek(String requestId) {
+        int s = shard(requestId);
+        RedisStateStore[] rs = replicas[s];
+        if (rs.length > 0) {
+            try {
+                Map<String, Object> v = rs[Math.floorMod(rr.getAndIncrement(), rs.length)].get(requestId);
+                if (v != null) return v;
+            } catch (RuntimeException e) {
+                // réplica indisponível: lê do primário
+            }
+        }
+        return primaries[s].get(requestId);
+    }
+
+    @Override
+    public void delete(String requestId) {
+        primaries[shard(requestId)].delete(requestId);
+    }
+
+    // ---- chaves por nó: no shard do nó ----
+
+    private RedisStateStore of(String node) { return primaries[shard(node)]; }
+
+    @Override
+    public void trackJob(String node, String requestId) { of(node).trackJob(node, requestId); }
+
+    @Override
+    public void untrackJob(String node, String requestId) { of(node).untrackJob(node, requestId); }
+
+    @Override
+    public Set<String> jobsOf(String node) { return of(node).jobsOf(node); }
+
+    @Override
+    public long queueLength(String node) { return of(node).queueLength(node); }
+
+    // ---- nós: no primeiro shard ----
+
+    @Override
+    public void registerNode(String node) { coord.registerNode(node); }
+
+    @Override
+    public Set<String> nodes() { return coord.nodes(); }
+
+    @Override
+    public boolean heartbeat(String node) { return coord.heartbeat(node); }
+
+    // ---- filas WFQ e quotas (mesma semântica do RedisStateStore, repartida pelos shards) ----
+
+    private static final String CLIENT_RUNNING_KEY = "client-running";
+
+    private static String queueClientKey(String node) { return "wfq-client:" + node; }
+
+    /** Como o ENQUEUE do RedisStateStore, só com as chaves do nó; guarda o cliente para o pop. */
+    private static final String Q_ENQUEUE = """
+            if redis.call('ZSCORE', KEYS[1], ARGV[1]) then return 0 end
+            local v = tonumber(redis.call('GET', KEYS[2]) or '0')
+            local last = tonumber(redis.call('HGET', KEYS[3], ARGV[2]) or '0')
+            local f = math.max(v, last) + tonumber(ARGV[3])
+            redis.call('HSET', KEYS[3], ARGV[2], tostring(f))
+            redis.call('ZADD', KEYS[1], f, ARGV[1])
+            redis.call('HSET', KEYS[4], ARGV[1], ARGV[2])
+            return 1
+            """;
+
+    /** Candidatos pela ordem pedida: requestId, tempo de fim, cliente ('' se desconhecido). */
+    private static final String Q_PEEK = """
+            local items
+            if ARGV[2] == 'min' then
+              items = redis.call('ZRANGE', KEYS[1], 0, tonumber(ARGV[1]) - 1, 'WITHSCORES')
+            else
+              items = redis.call('ZREVRANGE', KEYS[1], 0, tonumber(ARGV[1]) - 1, 'WITHSCORES')
+            end
+            local out = {}
+            for i = 1, #items, 2 do
+              table.insert(out, items[i])
+              table.insert(out, items[i + 1])
+              table.insert(out, redis.call('HGET', KEYS[2], items[i]) or '')
+            end
+            return out
+            """;
+
+    /** Reserva um slot para o primeiro cliente (ARGV[2..]) abaixo da quota; devolve a posição (1..) ou 0. */
+    private static final String CLAIM = """
+            local quota = tonumber(ARGV[1])
+            for i = 2, #ARGV do
+              if quota <= 0 or tonumber(redis.call('HGET', KEYS[1], ARGV[i]) or '0') < quota then
+                redis.call('HINCRBY', KEYS[1], ARGV[i], 1)
+                return i - 1
+              end
+            end
+            return 0
+            """;
+
+    /** Retira o job da fila (0 se outro nó já o levou); o dono avança o tempo virtual. */
+    private static final String Q_TAKE = """
+            if redis.call('ZREM', KEYS[1], ARGV[1]) == 0 then return 0 end
+            redis.call('HDEL', KEYS[3], ARGV[1])
+            if ARGV[2] == 'min' then redis.call('SET', KEYS[2], ARGV[3]) end
+            return 1
+            """;
+
+    private static final String RUN = """
+            if redis.call('SADD', KEYS[2], ARGV[1]) == 0 then return 0 end
+            redis.call('HINCRBY', KEYS[1], ARGV[2], 1)
+            return 1
+            """;
+
+    private static final String STOP = """
+            if redis.call('SREM', KEYS[2], ARGV[1]) == 0 then return 0 end
+            if ARGV[2] ~= '' and redis.call('HINCRBY', KEYS[1], ARGV[2], -1) <= 0 then
+              redis.call('HDEL', KEYS[1], ARGV[2])
+            end
+            return 1
+            """;
+
+    private static final String DECR = """
+            if redis.call('HINCRBY', KEYS[1], ARGV[1], -tonumber(ARGV[2])) <= 0 then
+              redis.call('HDEL', KEYS[1], ARGV[1])
+            end
+            return 1
+            """;
+
+    /** Retira do conjunto os nós sem heartbeat (só um reaper os recebe). */
+    private static final String DEAD = """
+            local dead = {}
+            for _, n in ipairs(redis.call('SMEMBERS', KEYS[1])) do
+              if redis.call('EXISTS', 'node-alive:' .. n) == 0 then
+                redis.call('SREM', KEYS[1], n)
+                table.insert(dead, n)
+              end
+            end
+            return dead
+            """;
+
+    /** Apaga a fila e as contagens de um nó morto; devolve {jobs em fila ou a correr, running (cliente, n)}. */
+    private static final String DRAIN = """
+            local jobs = redis.call('ZRANGE', KEYS[1], 0, -1)
+            for _, rid in ipairs(redis.call('SMEMBERS', KEYS[6])) do table.insert(jobs, rid) end
+            local running = redis.call('HGETALL', KEYS[5])
+            redis.call('DEL', KEYS[1], KEYS[2], KEYS[3], KEYS[4], KEYS[5], KEYS[6])
+            return {jobs, running}
+            """;
+
+    private static final String RESET = """
+            local running = redis.call('HGETALL', KEYS[1])
+            redis.call('DEL', KEYS[1], KEYS[2])
+            return running
+            """;
+
+    private static List<String> queueKeys(String node) {
+        return List.of(RedisStateStore.queueKey(node), RedisStateStore.vtimeKey(node),
+                RedisStateStore.finishKey(node), queueClientKey(node));
+    }
+
+    private static List<String> runningKeys(String node) {
+        return List.of(RedisStateStore.runningKey(node), RedisStateStore.runningJobsKey(node));
+    }
+
+    private void decr(String key, String field, long n) {
+        coord.call(j -> j.eval(DECR, List.of(key), List.of(field, String.valueOf(n))));
+    }
+
+    /** Associa o job ao cliente (uma vez) e conta-o nos pendentes do cliente. */
+    private void countJob(String requestId, String client) {
+        long added = primaries[shard(requestId)].call(j -> j.hsetnx(RedisStateStore.JOB_CLIENT_KEY, requestId, client));
+        if (added == 1) coord.call(j -> j.hincrBy(RedisStateStore.INFLIGHT_KEY, client, 1));
+    }
+
+    /** Conta o job como a correr no nó; se já lá estava, devolve a reserva feita no CLAIM. */
+    private void run(String node, String requestId, String client) {
+        Object r = of(node).call(j -> j.eval(RUN, runningKeys(node), List.of(requestId, client)));
+        if (!(r instanceof Long n && n == 1)) decr(CLIENT_RUNNING_KEY, client, 1);
+    }
+
+    @Override
+    public void enqueue(String node, String requestId, String client, double weight, double cost) {
+        countJob(requestId, client);
+        of(node).call(j -> j.eval(Q_ENQUEUE, queueKeys(node),
+                List.of(requestId, client, String.valueOf(cost / Math.max(weight, 1e-6)))));
+    }
+
+    @Override
+    public String pollOwn(String node, int quota, int scan) {
+        return pop(node, node, quota, scan, "min");
+    }
+
+    @Override
+    public String steal(String victim, String self, int quota, int scan) {
+        return pop(victim, self, quota, scan, "max");
+    }
+
+    private String pop(String queueNode, String runNode, int quota, int scan, String end) {
+        List<String> qk = queueKeys(queueNode);
+        // um job levado por outro nó entre a leitura e o ZREM: volta a tentar com a fila atual
+        for (int attempt = 0; attempt < 3; attempt++) {
+            List<String> items = RedisStateStore.strings(of(queueNode).call(j -> j.eval(Q_PEEK,
+                    List.of(qk.get(0), qk.get(3)), List.of(String.valueOf(scan), end))));
+            if (items.isEmpty()) return null;
+            List<String> args = new ArrayList<>();
+            args.add(String.valueOf(quota));
+            for (int i = 0; i < items.size(); i += 3) {
+                args.add(items.get(i + 2).isEmpty() ? "anonymous" : items.get(i + 2));
+            }
+            long idx = (Long) coord.call(j -> j.eval(CLAIM, List.of(CLIENT_RUNNING_KEY), args));
+            if (idx == 0) return null;
+            int k = (int) (idx - 1) * 3;
+            String rid = items.get(k);
+            String client = args.get((int) idx);
+            Object taken = of(queueNode).call(j -> j.eval(Q_TAKE, List.of(qk.get(0), qk.get(1), qk.get(3)),
+                    List.of(rid, end, items.get(k + 1))));
+            if (!(taken instanceof Long t && t == 1)) {
+                decr(CLIENT_RUNNING_KEY, client, 1);
+                continue;
+            }
+            countJob(rid, client); // só conta se o enqueue não chegou a associar o cliente
+            run(runNode, rid, client);
+            return rid;
+        }
+        return null;
+    }
+
+    @Override
+    public void release(String node, String requestId) {
+        RedisStateStore recs = primaries[shard(requestId)];
+        String client = recs.call(j -> j.hget(RedisStateStore.JOB_CLIENT_KEY, requestId));
+        Object stopped = of(node).call(j -> j.eval(STOP, runningKeys(node),
+                List.of(requestId, client == null ? "" : client)));
+        if (client == null) return;
+        if (recs.call(j -> j.hdel(RedisStateStore.JOB_CLIENT_KEY, requestId)) == 1) {
+            decr(RedisStateStore.INFLIGHT_KEY, client, 1);
+        }
+        if (stopped instanceof Long n && n == 1) decr(CLIENT_RUNNING_KEY, client, 1);
+    }
+
+    @Override
+    public boolean acquire(String node, String requestId, String client, int quota) {
+        Object claimed = coord.call(j -> j.eval(CLAIM, List.of(CLIENT_RUNNING_KEY),
+                List.of(String.valueOf(quota), client)));
+        if (!(claimed instanceof Long n && n == 1)) return false;
+        countJob(requestId, client);
+        run(node, requestId, client);
+        return true;
+    }
+
+    @Override
+    public void resetRunning(String node, Map<String, String> jobs) {
+        List<String> old = RedisStateStore.strings(of(node).call(j -> j.eval(RESET, runningKeys(node), List.of())));
+        for (int i = 0; i < old.size(); i += 2) {
+            decr(CLIENT_RUNNING_KEY, old.get(i), Long.parseLong(old.get(i + 1)));
+        }
+        jobs.forEach((rid, c) -> acquire(node, rid, c, 0));
+    }
+
+    /**
+     * Como o REAP do RedisStateStore: o primeiro shard retira os nós mortos do conjunto e só
+     * quem os retirou devolve as contagens dos jobs em fila ou a correr neles. node-jobs:<node>
+     * fica, para que o nó, ao reiniciar, volte a pôr em fila os seus jobs.
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public List<String> reapDeadNodes() {
+        List<String> dead = RedisStateStore.strings(coord.call(j -> j.eval(DEAD, List.of(RedisStateStore.NODES_KEY), List.of())));
+        for (String n : dead) {
+            List<String> keys = new ArrayList<>(queueKeys(n));
+            keys.addAll(runningKeys(n));
+            List<Object> drained = (List<Object>) of(n).call(j -> j.eval(DRAIN, keys, List.of()));
+            List<String> running = RedisStateStore.strings(drained.get(1));
+            for (int i = 0; i < running.size(); i += 2) {
+                decr(CLIENT_RUNNING_KEY, running.get(i), Long.parseLong(running.get(i + 1)));
+            }
+            for (String rid : RedisStateStore.strings(drained.get(0))) {
+                RedisStateStore recs = primaries[shard(rid)];
+                String client = recs.call(j -> j.hget(RedisStateStore.JOB_CLIENT_KEY, rid));
+                if (client != null && recs.call(j -> j.hdel(RedisStateStore.JOB_CLIENT_KEY, rid)) == 1) {
+                    decr(RedisStateStore.INFLIGHT_KEY, client, 1);
+                }
+            }
+        }
+        return dead;
+    }
+
+    /** Descrição para o log de arranque. */
+    public String describe() {
+        int reps = 0;
+        for (RedisStateStore[] r : replicas) reps += r.length;
+        return primaries.length + " shards, " + reps + " réplicas";
+    }
+}
@@ -1,35 +1,80 @@
 package tpa1.imgserver;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import redis.clients.jedis.Jedis;
-import redis.clients.jedis.JedisPool;
-import java.io.IOException;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
-public class StateStore {
-    private final JedisPool jedisPool;
-    private final ObjectMapper mapper = new ObjectMapper();
+/**
+ * Estado partilhado entre ImgServers: registos dos jobs, índice de jobs por nó,
+ * filas WFQ por nó e contadores de quota por cliente.
+ * Implementações: RedisStateStore (produção), ShardedStateStore (registos e filas por nó
+ * distribuídos por vários Redis, com réplicas) e MemoryStateStore (vários ImgServers numa só JVM).
+ */
+public interface StateStore {
 
-    public StateStore(String host, int port) {
-        this.jedisPool = new JedisPool(host, port);
-    }
+    // ---- registos dos jobs (requestId → JSON) ----
 
-    public void put(String requestId, Map<String, Object> json) {
-        try (Jedis j = jedisPool.getResource()) {
-            j.set(requestId, mapper.writeValueAsString(json));
-        } catch (JsonProcessingException e) {
-            throw new RuntimeException("Erro ao serializar JSON para Redis", e);
-        }
-    }
+    void put(String requestId, Map<String, Object> json);
+
+    /** Cópia do registo (null se não existir ou tiver expirado). */
+    Map<String, Object> get(String requestId);
 
-    public Map<String, Object> get(String requestId) {
-        try (Jedis j = jedisPool.getResource()) {
-            String v = j.get(requestId);
-            if (v == null) return null;
-            return mapper.readValue(v, new com.fasterxml.jackson.core.type.TypeReference<Map<String, Object>>() {});
-        } catch (IOException e) {
-            throw new RuntimeException("Erro ao desserializar JSON do Redis", e);
-        }
+    /**
+     * Leitura para consultas de estado que toleram atraso de replicação (pode vir de uma
+     * réplica). Não usar antes de escrever: um registo antigo sobrepor-se-ia ao atual.
+     */
+    default Map<String, Object> peek(String requestId) {
+        return get(requestId);
     }
+
+    void delete(String requestId);
+
+    // ---- índice de jobs por ImgServer (reconciliação após restart) ----
+
+    void trackJob(String node, String requestId);
+
+    void untrackJob(String node, String requestId);
+
+    Set<String> jobsOf(String node);
+
+    // ---- nós e filas de jobs pendentes ----
+
+    void registerNode(String node);
+
+    Set<String> nodes();
+
+    /**
+     * Marca o nó como vivo (repetir a cada poucos segundos). Devolve true se o nó tinha
+     * saído do conjunto, i.e. foi dado como morto e as suas filas e contagens devolvidas.
+     */
+    boolean heartbeat(String node);
+
+    /**
+     * Retira os nós sem heartbeat: os jobs em fila ou a correr neles deixam de contar para
+     * as quotas e pendentes dos clientes. Devolve os nós retirados.
+     */
+    List<String> reapDeadNodes();
+
+    /** Põe o job na fila do nó com tempo de fim WFQ = max(V, último F do cliente) + custo / peso. */
+    void enqueue(String node, String requestId, String client, double weight, double cost);
+
+    /** O dono consome o job com menor tempo de fim cujo cliente esteja abaixo da quota. */
+    String pollOwn(String node, int quota, int scan);
+
+    /** Um ImgServer ocioso rouba da cauda (maior tempo de fim) da fila de outro. */
+    String steal(String victim, String self, int quota, int scan);
+
+    /** Job terminou (ou foi descartado): liberta o slot do cliente neste nó e a contagem global. */
+    void release(String node, String requestId);
+
+    /**
+     * Conta um job que corre no nó sem passar pela fila (upload em streaming, reconciliação).
+     * Com quota > 0 recusa (false) se o cliente já tiver quota jobs a correr no cluster.
+     */
+    boolean acquire(String node, String requestId, String client, int quota);
+
+    /** Reconstrói os jobs a correr deste nó (requestId → cliente), após restart. */
+    void resetRunning(String node, Map<String, String> jobs);
+
+    long queueLength(String node);
 }
@@ -0,0 +1,44 @@
+package tpa1.imgserver;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Organização do volume partilhado:
+ *  - Ficheiros repartidos por subdiretórios (shards) segundo o prefixo do requestId,
+ *    para que input/ e output/ não acumulem milhares de entradas numa só pasta.
+ *  - Caminhos relativos (ex.: "3f/in-3f9a....png") são os mesmos no host e no container.
+ */
+public final class VolumeLayout {
+    static final int SHARD_CHARS = 2;
+
+    private VolumeLayout() {}
+
+    public static String shard(String requestId) {
+        String s = requestId.replace("-", "");
+        return s.length() >= SHARD_CHARS ? s.substring(0, SHARD_CHARS) : "_";
+    }
+
+    public static String inputRel(String requestId, String ext) {
+        return shard(requestId) + "/in-" + requestId + ext;
+    }
+
+    public static String outputRel(String requestId, String ext) {
+        return shard(requestId) + "/out-" + requestId + ext;
+    }
+
+    /** Ficheiro parcial de uma sessão de upload retomável. */
+    public static String sessionRel(String sessionId) {
+        if (!sessionId.matches("[A-Za-z0-9-]{1,64}"))
+            throw new IllegalArgumentException("sessionId inválido: " + sessionId);
+        return shard(sessionId) + "/up-" + sessionId + ".part";
+    }
+
+    /** Resolve o caminho relativo dentro de base, criando o shard se necessário. */
+    public static Path resolve(Path base, String rel) throws IOException {
+        Path p = base.resolve(rel);
+        Files.createDirectories(p.getParent());
+        return p;
+    }
+}
@@ -0,0 +1,118 @@
+package tpa1.imgserver;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Limpeza periódica do volume partilhado:
+ *  - Remove inputs cujo job já terminou (ou cujo registo expirou no Redis).
+ *  - Remove outputs mais antigos que a janela de retenção.
+ *  - Remove ficheiros .part de sessões de upload abandonadas.
+ */
+public class VolumeSweeper {
+
+    private final Path inputDir;
+    private final Path outputDir;
+    private final StateStore store;
+    private final long inputGraceSec;
+    private final long outputRetentionSec;
+    private final ScheduledExecutorService exec = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "volume-sweeper");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private static void log(String msg) { System.out.printf("[Sweeper] %s%n", msg); }
+
+    public VolumeSweeper(Path inputDir, Path outputDir, StateStore store,
+                         long inputGraceSec, long outputRetentionSec) {
+        this.inputDir = inputDir;
+        this.outputDir = outputDir;
+        this.store = store;
+        this.inputGraceSec = inputGraceSec;
+        this.outputRetentionSec = outputRetentionSec;
+    }
+
+    public void start(long intervalSec) {
+        exec.scheduleWithFixedDelay(this::sweep, intervalSec, intervalSec, TimeUnit.SECONDS);
+        log("Ativo (intervalo=" + intervalSec + "s, retenção outputs=" + outputRetentionSec + "s)");
+    }
+
+    public void stop() { exec.shutdownNow(); }
+
+    void sweep() {
+        try {
+            long now = System.currentTimeMillis();
+            int in = sweepDir(inputDir, "in-", now - inputGraceSec * 1000L, true);
+            int out = sweepOutputs(now - outputRetentionSec * 1000L);
+            int parts = sweepDir(inputDir, "up-", now - inputGraceSec * 1000L, false);
+            if (in + out + parts > 0)
+                log("Removidos " + in + " inputs, " + out + " outputs e " + parts + " uploads abandonados");
+        } catch (Exception e) {
+            // nunca deixar a exceção matar o agendamento
+            log("Erro na limpeza: " + e.getMessage());
+        }
+    }
+
+    private int sweepDir(Path base, String prefix, long cutoffMillis, boolean checkJob) throws IOException {
+        if (!Files.isDirectory(base)) return 0;
+        int removed = 0;
+        try (Stream<Path> files = Files.walk(base, 2)) {
+            for (Path p : (Iterable<Path>) files::iterator) {
+                String name = p.getFileName().toString();
+                if (!name.startsWith(prefix) || !Files.isRegularFile(p)) continue;
+                FileTime mtime = Files.getLastModifiedTime(p);
+                if (mtime.toMillis() > cutoffMillis) continue;
+                if (checkJob && !isFinished(requestIdOf(name, prefix))) continue;
+                try {
+                    if (Files.deleteIfExists(p)) removed++;
+                } catch (IOException ignored) {}
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Remove outputs expirados e o registo do job correspondente: sem o ficheiro, um registo
+     * DONE levaria o download a falhar com "ficheiro não encontrado" em vez de "desconhecido".
+     */
+    private int sweepOutputs(long cutoffMillis) throws IOException {
+        if (!Files.isDirectory(outputDir)) return 0;
+        int removed = 0;
+        try (Stream<Path> files = Files.walk(outputDir, 2)) {
+            for (Path p : (Iterable<Path>) files::iterator) {
+                String name = p.getFileName().toString();
+                if (!name.startsWith("out-") || !Files.isRegularFile(p)) continue;
+                if (Files.getLastModifiedTime(p).toMillis() > cutoffMillis) continue;
+                try {
+                    if (Files.deleteIfExists(p)) {
+                        removed++;
+                        String rid = requestIdOf(name, "out-");
+                        Map<String, Object> meta = store.get(rid);
+                        if (meta != null && "DONE".equals(String.valueOf(meta.get("status")))) store.delete(rid);
+                    }
+                } catch (IOException ignored) {}
+            }
+        }
+        return removed;
+    }
+
+    private boolean isFinished(String requestId) {
+        Map<String, Object> meta = store.get(requestId);
+        if (meta == null) return true; // registo expirado → input órfão
+        String st = String.valueOf(meta.get("status"));
+        return "DONE".equals(st) || "FAILED".equals(st);
+    }
+
+    private static String requestIdOf(String fileName, String prefix) {
+        String s = fileName.substring(prefix.length());
+        int dot = s.indexOf('.'); // requestIds são UUIDs: tudo após o 1º ponto é extensão
+        return dot > 0 ? s.substring(0, dot) : s;
+    }
+}
@@ -0,0 +1,52 @@
+package tpa1.imgserver;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Lança e acompanha os workers de redimensionamento.
+ * Implementações: DockerLauncher (um container por job) e InProcessLauncher
+ * (worker na própria JVM, para testes locais sem Docker).
+ */
+public interface WorkerLauncher {
+
+    /** Worker lançado por um ImgServer (container ou execução local). */
+    record JobContainer(String id, String requestId, boolean running) {}
+
+    /** Worker em streaming: lê o input de pipe à medida que o upload chega. */
+    record StreamingRun(String id, ChunkPipe pipe) {}
+
+    /**
+     * Lança o worker sobre o volume hostVolumePath (com input/ e output/) e devolve o seu id.
+     * inRel/outRel são relativos a input/ e output/; owner identifica o ImgServer (ip:porta).
+     */
+    String launchResize(String imageName, String hostVolumePath, String inRel, String outRel, double pct,
+                        List<String> encoderArgs, String requestId, String owner);
+
+    boolean isRunning(String containerId);
+
+    /**
+     * Lança um worker que descodifica o input a partir do pipe devolvido, enquanto o upload
+     * decorre; o output vai para outRel (relativo a output/). null = não suportado.
+     * O id devolvido é acompanhado como os de launchResize.
+     */
+    default StreamingRun launchStreaming(String hostVolumePath, String outRel, double pct,
+                                         List<String> encoderArgs, String requestId, String owner) {
+        return null;
+    }
+
+    /** Código de saída (null se ainda a correr ou desconhecido). */
+    Long exitCode(String containerId);
+
+    /** Bloqueia até o worker terminar e devolve o código de saída (por omissão, polling a 500 ms). */
+    default Long awaitExit(String containerId) throws InterruptedException {
+        while (isRunning(containerId)) Thread.sleep(500);
+        return exitCode(containerId);
+    }
+
+    /** Workers (a correr ou terminados) lançados por owner, indexados por requestId. */
+    Map<String, JobContainer> listByOwner(String owner);
+
+    /** Remove o worker terminado (pode ser assíncrono: não deve bloquear o job). */
+    void remove(String containerId);
+}
@@ -0,0 +1,110 @@
+package tpa1.imgserver;
+
+import org.junit.jupiter.api.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ImageProbeTest {
+
+    private static byte[] encode(String format, int w, int h, int type) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertTrue(ImageIO.write(new BufferedImage(w, h, type), format, out));
+        return out.toByteArray();
+    }
+
+    @Test
+    void pngIhdr() throws IOException {
+        byte[] png = encode("png", 640, 480, BufferedImage.TYPE_INT_RGB);
+        ImageProbe.Header h = ImageProbe.probe(png, png.length);
+        assertEquals(new ImageProbe.Header("png", 640, 480, 2), h);
+    }
+
+    @Test
+    void pngComAlfa() throws IOException {
+        byte[] png = encode("png", 3, 7, BufferedImage.TYPE_INT_ARGB);
+        assertEquals(6, ImageProbe.probe(png, png.length).colorType());
+    }
+
+    @Test
+    void jpegSof() throws IOException {
+        byte[] jpg = encode("jpg", 1600, 1200, BufferedImage.TYPE_INT_RGB);
+        ImageProbe.Header h = ImageProbe.probe(jpg, jpg.length);
+        assertEquals(new ImageProbe.Header("jpg", 1600, 1200, 3), h);
+    }
+
+    @Test
+    void jpegCinzento() throws IOException {
+        byte[] jpg = encode("jpg", 20, 10, BufferedImage.TYPE_BYTE_GRAY);
+        ImageProbe.Header h = ImageProbe.probe(jpg, jpg.length);
+        assertEquals(20, h.width());
+        assertEquals(10, h.height());
+        assertEquals(1, h.colorType());
+    }
+
+    @Test
+    void jpegComSegmentosAntesDoSof() {
+        // SOI, APP1 (EXIF) de 300 bytes, padding 0xFF, SOF2 (progressivo) 4000x3000 com 3 componentes
+        byte[] b = new byte[2 + 2 + 300 + 1 + 11];
+        int i = 0;
+        b[i++] = (byte) 0xFF; b[i++] = (byte) 0xD8;
+        b[i++] = (byte) 0xFF; b[i++] = (byte) 0xE1;
+        b[i] = 300 >> 8; b[i + 1] = (byte) (300 & 0xFF);
+        i += 300;
+        b[i++] = (byte) 0xFF;
+        b[i++] = (byte) 0xFF; b[i++] = (byte) 0xC2;
+        b[i++] = 0; b[i++] = 17; b[i++] = 8;
+        b[i++] = (byte) (3000 >> 8); b[i++] = (byte) (3000 & 0xFF);
+        b[i++] = (byte) (4000 >> 8); b[i++] = (byte) (4000 & 0xFF);
+        b[i] = 3;
+        assertEquals(new ImageProbe.Header("jpg", 4000, 3000, 3), ImageProbe.probe(b, b.length));
+    }
+
+    @Test
+    void cabecalhoTruncadoDevolveNull() throws IOException {
+        byte[] png = encode("png", 10, 10, BufferedImage.TYPE_INT_RGB);
+        assertNull(ImageProbe.probe(png, 25)); // IHDR precisa de 26 bytes
+        assertNotNull(ImageProbe.probe(png, 26));
+
+        byte[] jpg = encode("jpg", 10, 10, BufferedImage.TYPE_INT_RGB);
+        int sof = sofOffset(jpg);
+        assertNull(ImageProbe.probe(Arrays.copyOf(jpg, sof + 9), sof + 9));
+        assertNotNull(ImageProbe.probe(Arrays.copyOf(jpg, sof + 10), sof + 10));
+        assertNull(ImageProbe.probe(jpg, 3));
+    }
+
+    @Test
+    void formatoDesconhecidoOuDessincronizado() {
+        byte[] gif = "GIF89a\1\0\1\0".getBytes();
+        assertNull(ImageProbe.probe(gif, gif.length));
+        // SOI seguido de lixo em vez de um marcador
+        byte[] bad = {(byte) 0xFF, (byte) 0xD8, 0x12, 0x34, 0x00, 0x10};
+        assertNull(ImageProbe.probe(bad, bad.length));
+        // SOS antes de SOF
+        byte[] sos = {(byte) 0xFF, (byte) 0xD8, (byte) 0xFF, (byte) 0xDA, 0x00, 0x08};
+        assertNull(ImageProbe.probe(sos, sos.length));
+    }
+
+    @Test
+    void maxPixels() {
+        ImageProbe.Header h = new ImageProbe.Header("jpg", 10_000, 10_000, 3);
+        assertEquals(100_000_000L, h.pixels());
+        assertFalse(h.exceeds(100_000_000L)); // no limite: aceite
+        assertTrue(h.exceeds(99_999_999L));
+        // sem overflow em int
+        assertTrue(new ImageProbe.Header("png", 65_535, 65_535, 2).exceeds(Integer.MAX_VALUE));
+    }
+
+    /** Posição do primeiro marcador SOF0 (0xFFC0) de um JPEG baseline. */
+    private static int sofOffset(byte[] jpg) {
+        for (int i = 2; i + 1 < jpg.length; i++) {
+            if ((jpg[i] & 0xFF) == 0xFF && (jpg[i + 1] & 0xFF) == 0xC0) return i;
+        }
+        throw new AssertionError("JPEG sem SOF0");
+    }
+}
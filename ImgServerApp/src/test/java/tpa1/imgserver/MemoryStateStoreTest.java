@@ -0,0 +1,137 @@
+package tpa1.imgserver;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/** Filas WFQ e quotas do MemoryStateStore (mesma semântica dos scripts Lua do RedisStateStore). */
+class MemoryStateStoreTest {
+
+    private static final String A = "10.0.0.1:50052";
+    private static final String B = "10.0.0.2:50052";
+    private static final int SCAN = 64;
+
+    private MemoryStateStore store;
+
+    @BeforeEach
+    void setUp() {
+        store = new MemoryStateStore();
+        store.registerNode(A);
+        store.registerNode(B);
+    }
+
+    @Test
+    void donoConsomePorTempoDeFim() {
+        // batch (peso 1) com 3 jobs, interativo (peso 8) com 3 jobs, todos de custo 1
+        for (int i = 0; i < 3; i++) store.enqueue(A, "batch-" + i, "batch", 1, 1);
+        for (int i = 0; i < 3; i++) store.enqueue(A, "int-" + i, "int", 8, 1);
+        // F: batch 1,2,3; interativo 0.125, 0.25, 0.375
+        assertEquals(List.of("int-0", "int-1", "int-2", "batch-0", "batch-1", "batch-2"), drain(A, 0));
+    }
+
+    @Test
+    void tempoDeFimParteDoTempoVirtualDoNo() {
+        store.enqueue(A, "a1", "a", 1, 4);
+        assertEquals("a1", store.pollOwn(A, 0, SCAN)); // V = 4
+        store.enqueue(A, "a2", "a", 1, 1);            // F = 5
+        store.enqueue(A, "b1", "b", 1, 2);            // cliente novo: F = V + 2 = 6, não 2
+        assertEquals(List.of("a2", "b1"), drain(A, 0));
+    }
+
+    @Test
+    void clienteNaQuotaESaltado() {
+        store.enqueue(A, "a1", "a", 1, 1);
+        store.enqueue(A, "a2", "a", 1, 1);
+        store.enqueue(A, "b1", "b", 1, 1);
+        assertEquals("a1", store.pollOwn(A, 1, SCAN));
+        // "a" tem 1 job a correr (quota 1): o próximo elegível é o de "b", apesar de F maior
+        assertEquals("b1", store.pollOwn(A, 1, SCAN));
+        assertNull(store.pollOwn(A, 1, SCAN));
+        store.release(A, "a1");
+        assertEquals("a2", store.pollOwn(A, 1, SCAN));
+    }
+
+    @Test
+    void quotaContaJobsNoutrosNos() {
+        store.enqueue(A, "a1", "a", 1, 1);
+        store.enqueue(B, "a2", "a", 1, 1);
+        assertEquals("a1", store.pollOwn(A, 1, SCAN));
+        assertNull(store.pollOwn(B, 1, SCAN));
+        assertNull(store.steal(B, A, 1, SCAN));
+    }
+
+    @Test
+    void ladraoLevaOMaiorTempoDeFim() {
+        store.enqueue(A, "a1", "a", 1, 1);
+        store.enqueue(A, "a2", "a", 1, 1);
+        store.enqueue(A, "a3", "a", 1, 1);
+        assertEquals("a3", store.steal(A, B, 0, SCAN));
+        // o job roubado conta na quota do cliente, agora no nó do ladrão
+        assertNull(store.pollOwn(A, 1, SCAN));
+        assertEquals(List.of("a1", "a2"), drain(A, 0));
+        store.release(B, "a3");
+        store.enqueue(A, "x", "x", 1, 1);
+        assertEquals("x", store.steal(A, B, 1, SCAN));
+        assertNull(store.steal(A, B, 0, SCAN));
+    }
+
+    @Test
+    void reenqueueMantemPosicaoENaoCobraDeNovo() {
+        store.enqueue(A, "a1", "a", 1, 1); // F = 1
+        store.enqueue(A, "b1", "b", 1, 2); // F = 2
+        store.enqueue(A, "a1", "a", 1, 1); // reconciliação: continua F = 1
+        store.enqueue(A, "a2", "a", 1, 1); // F = 2 (não 3): o repetido não foi cobrado
+        assertEquals(3, store.queueLength(A));
+        assertEquals("a1", store.pollOwn(A, 0, SCAN));
+        String second = store.pollOwn(A, 0, SCAN);
+        assertTrue(second.equals("b1") || second.equals("a2"), second);
+    }
+
+    @Test
+    void pendentesDoClienteContamAteAoRelease() {
+        store.enqueue(A, "a1", "a", 1, 1);
+        store.enqueue(A, "a2", "a", 1, 1);
+        assertTrue(store.acquire(A, "a3", "a", 0));
+        assertEquals("a1", store.pollOwn(A, 0, SCAN));
+        // 2 a correr: com quota 2 o streaming é recusado
+        assertFalse(store.acquire(A, "a4", "a", 2));
+        store.release(A, "a1");
+        store.release(A, "a3");
+        store.release(A, "a3"); // repetido: sem efeito
+        assertTrue(store.acquire(A, "a4", "a", 2));
+    }
+
+    @Test
+    void noMortoDevolveFilaEQuotas() throws Exception {
+        System.setProperty("nodeTtlSec", "0");
+        try {
+            MemoryStateStore s = new MemoryStateStore();
+            s.registerNode(A);
+            s.enqueue(A, "a1", "a", 1, 1);
+            s.enqueue(A, "a2", "a", 1, 1);
+            assertEquals("a1", s.pollOwn(A, 0, SCAN));
+            Thread.sleep(5);
+            assertEquals(List.of(A), s.reapDeadNodes());
+            assertEquals(0, s.queueLength(A));
+            assertTrue(s.nodes().isEmpty());
+            // contagens devolvidas: recomeça do zero
+            assertTrue(s.heartbeat(A));
+            s.resetRunning(A, Map.of("a1", "a"));
+            assertFalse(s.acquire(A, "a5", "a", 1));
+        } finally {
+            System.clearProperty("nodeTtlSec");
+        }
+    }
+
+    private List<String> drain(String node, int quota) {
+        List<String> out = new ArrayList<>();
+        String rid;
+        while ((rid = store.pollOwn(node, quota, SCAN)) != null) out.add(rid);
+        return out;
+    }
+}
@@ -0,0 +1,275 @@
+package tpa1.harness;
+
+import img_client.ImgClient.JobStatsResponse;
+import img_client.ImgClient.Priority;
+import io.grpc.LoadBalancerRegistry;
+import io.grpc.internal.PickFirstLoadBalancerProvider;
+import tpa1.clientlib.GrpcTransport;
+import tpa1.clientlib.ImgClient;
+import tpa1.imgserver.ImgServerNode;
+import tpa1.imgserver.InProcessLauncher;
+import tpa1.imgserver.MemoryStateStore;
+import tpa1.imgserver.StateStore;
+
+import javax.imageio.ImageIO;
+import java.awt.Color;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+/**
+ * Harness local de throughput/latência: Manager + N ImgServers + worker numa só JVM,
+ * com canais gRPC in-process, MemoryStateStore (sem Redis) e InProcessLauncher (sem Docker).
+ *
+ * Um cliente BATCH envia -Dimages imagens com -Dparallel transferências em curso; em simultâneo
+ * um cliente INTERACTIVE envia -DinteractiveImages imagens uma a uma. No fim compara com os
+ * orçamentos e termina com código 1 se algum falhar.
+ *
+ * Os orçamentos são relativos a uma calibração feita antes da carga no mesmo cluster: a latência
+ * mediana L de -DcalibrationImages=8 imagens sequenciais, com o cluster vazio. Assim não dependem
+ * da máquina onde o harness corre:
+ *   -DminSpeedup=2.5            throughput (batch + interativo) >= 2.5 x o sequencial (1/L)
+ *   -DinteractiveP99Factor=7    p99 upload→download do cliente interativo <= 7 x L
+ *   -DbatchP99Factor=23         p99 do cliente batch <= 23 x L
+ * Os fatores ficam ~25% abaixo da linha de base com a carga padrão (L ~0.53 s, 3.3-3.6x,
+ * p99 interativo 5-5.6 L, p99 batch 16-18 L); com outra forma de carga (mais imagens em
+ * paralelo, outros nós) indicar os fatores. -DminThroughput, -DmaxInteractiveP99Ms e
+ * -DmaxBatchP99Ms fixam orçamentos absolutos (0 desliga os de latência).
+ *
+ * Corre em "mvn verify" (fase integration-test, -DskipHarness=true para saltar) ou diretamente:
+ *   java -jar LocalHarness-1.0-SNAPSHOT-jar-with-dependencies.jar
+ *   (-Dservers=3 -DmaxJobs=2 -Dimages=60 -Dparallel=16 -DinteractiveImages=10 -Dverbose=false)
+ */
+public class LocalCluster {
+
+    private static final String MANAGER_IP = "127.0.0.1";
+    private static final int MANAGER_PORT = 50051;
+    private static final PrintStream OUT = System.out;
+
+    public static void main(String[] args) throws Exception {
+        int servers = Integer.getInteger("servers", 3);
+        int maxJobs = Integer.getInteger("maxJobs", 2);
+        int images = Integer.getInteger("images", 60);
+        int parallel = Integer.getInteger("parallel", 16);
+        int interactive = Integer.getInteger("interactiveImages", 10);
+        int calibration = Integer.getInteger("calibrationImages", 8);
+
+        System.setProperty("grpc.inProcess", "true");
+        // o jar-with-dependencies perde os META-INF/services do gRPC (como nas outras apps)
+        LoadBalancerRegistry.getDefaultRegistry().register(new PickFirstLoadBalancerProvider());
+        if (!Boolean.getBoolean("verbose")) {
+            // os logs por pedido dos servidores distorcem as medições
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        }
+
+        Path base = Files.createTempDirectory("local-cluster");
+        int exit;
+        try {
+            exit = run(base, servers, maxJobs, images, parallel, interactive, calibration);
+        } catch (Exception e) {
+            // as threads do gRPC não terminariam a JVM: sai com falha
+            OUT.println("[Harness] FALHOU: " + e);
+            exit = 1;
+        } finally {
+            deleteTree(base);
+        }
+        System.exit(exit);
+    }
+
+    /** Arranca o cluster em base, corre a carga e devolve o código de saída (0 = dentro dos orçamentos). */
+    private static int run(Path base, int servers, int maxJobs, int images, int parallel, int interactive,
+                           int calibration) throws Exception {
+        startManager();
+        StateStore store = new MemoryStateStore();
+        InProcessLauncher launcher = new InProcessLauncher();
+        for (int i = 0; i < servers; i++) {
+            startImgServer(MANAGER_IP, MANAGER_PORT + 1 + i, base.resolve("node-" + i), store, launcher, maxJobs);
+        }
+
+        Path[] samples = sampleImages(base);
+        Path out = base.resolve("downloads");
+        long calibrationMs = calibrate(samples, out, calibration);
+        // orçamentos relativos à calibração nesta máquina, salvo valores absolutos indicados
+        double minThroughput = Double.parseDouble(System.getProperty("minThroughput",
+                String.valueOf(Double.parseDouble(System.getProperty("minSpeedup", "2.5")) * 1000.0 / calibrationMs)));
+        long maxInteractiveP99 = Long.parseLong(System.getProperty("maxInteractiveP99Ms",
+                String.valueOf(Math.round(Double.parseDouble(System.getProperty("interactiveP99Factor", "7")) * calibrationMs))));
+        long maxBatchP99 = Long.parseLong(System.getProperty("maxBatchP99Ms",
+                String.valueOf(Math.round(Double.parseDouble(System.getProperty("batchP99Factor", "23")) * calibrationMs))));
+        OUT.printf("[Harness] calibração: %d imagens sequenciais, mediana=%d ms -> orçamentos: >= %.2f img/s, "
+                        + "p99 interativo <= %d ms, p99 batch <= %d ms%n",
+                calibration, calibrationMs, minThroughput, maxInteractiveP99, maxBatchP99);
+        OUT.printf("[Harness] %d ImgServers x %d jobs, %d imagens batch (%d em paralelo) + %d interativas%n",
+                servers, maxJobs, images, parallel, interactive);
+
+        List<Long> batchMs = Collections.synchronizedList(new ArrayList<>());
+        List<Long> interactiveMs = new ArrayList<>();
+        List<Path> interactiveOut = new ArrayList<>();
+        AtomicInteger failures = new AtomicInteger();
+        long t0 = System.nanoTime();
+
+        try (ImgClient batch = ImgClient.viaManager(MANAGER_IP, MANAGER_PORT, parallel)
+                     .identity("harness-batch", Priority.BATCH);
+             ImgClient user = ImgClient.viaManager(MANAGER_IP, MANAGER_PORT, 1)
+                     .identity("harness-interactive", Priority.INTERACTIVE)) {
+
+            List<CompletableFuture<?>> all = new ArrayList<>();
+            for (int i = 0; i < images; i++) {
+                long start = System.nanoTime();
+                all.add(batch.process(samples[i % samples.length], out).handle((p, err) -> {
+                    if (err != null) {
+                        failures.incrementAndGet();
+                    } else {
+                        batchMs.add((System.nanoTime() - start) / 1_000_000);
+                    }
+                    return null;
+                }));
+            }
+
+            // o cliente interativo chega com o sistema já carregado
+            Thread.sleep(500);
+            for (int i = 0; i < interactive; i++) {
+                long start = System.nanoTime();
+                try {
+                    interactiveOut.add(user.process(samples[i % samples.length], out).get(5, TimeUnit.MINUTES));
+                    interactiveMs.add((System.nanoTime() - start) / 1_000_000);
+                } catch (Exception e) {
+                    failures.incrementAndGet();
+                }
+            }
+            CompletableFuture.allOf(all.toArray(CompletableFuture[]::new)).join();
+            workerStats(user, interactiveOut);
+        }
+
+        double secs = (System.nanoTime() - t0) / 1e9;
+        int done = batchMs.size() + interactiveMs.size();
+        double throughput = done / secs;
+        OUT.printf("[Harness] %d imagens em %.2f s = %.2f img/s (%d falhas)%n", done, secs, throughput, failures.get());
+        OUT.printf("[Harness] batch:      p50=%d ms  p99=%d ms%n", percentile(batchMs, 50), percentile(batchMs, 99));
+        OUT.printf("[Harness] interativo: p50=%d ms  p99=%d ms%n", percentile(interactiveMs, 50), percentile(interactiveMs, 99));
+
+        List<String> violations = new ArrayList<>();
+        if (failures.get() > 0) violations.add(failures.get() + " pedidos falhados");
+        if (throughput < minThroughput) violations.add(String.format("throughput %.2f < %.2f img/s", throughput, minThroughput));
+        if (maxInteractiveP99 > 0 && percentile(interactiveMs, 99) > maxInteractiveP99)
+            violations.add("p99 interativo " + percentile(interactiveMs, 99) + " > " + maxInteractiveP99 + " ms");
+        if (maxBatchP99 > 0 && percentile(batchMs, 99) > maxBatchP99)
+            violations.add("p99 batch " + percentile(batchMs, 99) + " > " + maxBatchP99 + " ms");
+
+        if (violations.isEmpty()) {
+            OUT.println("[Harness] OK: dentro dos orçamentos");
+            return 0;
+        }
+        OUT.println("[Harness] FALHOU: " + String.join("; ", violations));
+        return 1;
+    }
+
+    /**
+     * Latência mediana de uma imagem com o cluster vazio (um cliente, pedidos sequenciais).
+     * Também aquece o JIT e os pools antes da medição com carga.
+     */
+    private static long calibrate(Path[] samples, Path out, int n) throws Exception {
+        List<Long> ms = new ArrayList<>();
+        try (ImgClient c = ImgClient.viaManager(MANAGER_IP, MANAGER_PORT, 1)
+                .identity("harness-calibration", Priority.INTERACTIVE)) {
+            for (int i = 0; i < n; i++) {
+                long start = System.nanoTime();
+                c.process(samples[i % samples.length], out).get(5, TimeUnit.MINUTES);
+                ms.add((System.nanoTime() - start) / 1_000_000);
+            }
+        }
+        return percentile(ms, 50);
+    }
+
+    /** Apaga o diretório temporário (volumes, amostras e downloads); falhas só são reportadas. */
+    private static void deleteTree(Path dir) {
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        } catch (Exception e) {
+            OUT.println("[Harness] Não foi possível apagar " + dir + ": " + e.getMessage());
+        }
+    }
+
+    /** Médias das etapas medidas pelo worker (GetJobStats) nos jobs do cliente interativo. */
+    private static void workerStats(ImgClient client, List<Path> results) throws Exception {
+        long decode = 0, resize = 0, encode = 0, peak = 0;
+        int n = 0;
+        for (Path p : results) {
+            // "download-<requestId>.<ext>"
+            String name = p.getFileName().toString();
+            String rid = name.substring("download-".length(), name.lastIndexOf('.'));
+            JobStatsResponse st = client.stats(rid).get(30, TimeUnit.SECONDS);
+            if (!st.getHasStats()) continue;
+            decode += st.getDecodeNs();
+            resize += st.getResizeNs();
+            encode += st.getEncodeNs();
+            peak = Math.max(peak, st.getPeakHeapBytes());
+            n++;
+        }
+        if (n == 0) return;
+        OUT.printf("[Harness] worker (média de %d): decode=%.1f ms  resize=%.1f ms  encode=%.1f ms  pico heap=%d MB%n",
+                n, decode / 1e6 / n, resize / 1e6 / n, encode / 1e6 / n, peak >> 20);
+    }
+
+    /**
+     * ManagerServerApp tal como em produção, no nome in-process "127.0.0.1:50051".
+     * Sem Redis as consultas de quotas falham de imediato e o Manager recorre ao round-robin.
+     */
+    private static void startManager() throws InterruptedException {
+        System.setProperty("managerIp", MANAGER_IP);
+        System.setProperty("managerPort", String.valueOf(MANAGER_PORT));
+        Thread t = new Thread(() -> {
+            try {
+                tpa1.manager.Main.main(new String[0]);
+            } catch (Exception e) {
+                OUT.println("[Harness] Manager terminou: " + e.getMessage());
+            }
+        }, "manager");
+        t.setDaemon(true);
+        t.start();
+        Thread.sleep(200);
+    }
+
+    /** Mesma composição que o Main do ImgServerApp (ImgServerNode), com estado e worker locais. */
+    private static void startImgServer(String ip, int port, Path volume, StateStore store,
+                                       InProcessLauncher launcher, int maxJobs) throws Exception {
+        ImgServerNode node = new ImgServerNode(ip, port, 1, GrpcTransport.channel(MANAGER_IP, MANAGER_PORT).build());
+        node.register(true); // o Manager arranca noutra thread
+        node.start(volume, store, launcher, maxJobs);
+    }
+
+    /** Um PNG e um JPEG de 1600x1200 (gradiente + formas, para a codificação não ser trivial). */
+    private static Path[] sampleImages(Path dir) throws Exception {
+        BufferedImage img = new BufferedImage(1600, 1200, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = img.createGraphics();
+        g.setPaint(new GradientPaint(0, 0, new Color(20, 60, 180), 1600, 1200, new Color(250, 200, 40)));
+        g.fillRect(0, 0, 1600, 1200);
+        Random rnd = new Random(42);
+        for (int i = 0; i < 200; i++) {
+            g.setColor(new Color(rnd.nextInt(0xFFFFFF)));
+            g.fillOval(rnd.nextInt(1600), rnd.nextInt(1200), 20 + rnd.nextInt(120), 20 + rnd.nextInt(120));
+        }
+        g.dispose();
+        Path png = dir.resolve("sample.png");
+        Path jpg = dir.resolve("sample.jpg");
+        ImageIO.write(img, "png", png.toFile());
+        ImageIO.write(img, "jpg", jpg.toFile());
+        return new Path[]{png, jpg};
+    }
+
+    private static long percentile(List<Long> values, int p) {
+        if (values.isEmpty()) return 0;
+        List<Long> s = new ArrayList<>(values);
+        Collections.sort(s);
+        return s.get(Math.min(s.size() - 1, (int) Math.ceil(p / 100.0 * s.size()) - 1));
+    }
+}
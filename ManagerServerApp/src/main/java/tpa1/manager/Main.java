@@ -1,61 +1,237 @@
 package tpa1.manager;
 
 import io.grpc.Server;
-import io.grpc.ServerBuilder;
 import manager_server.ManagerServerRegistrationServiceGrpc;
 import manager_server.ManagerServer.RegisterImgServerRequest;
 import manager_server.ManagerServer.RegisterImgServerResponse;
+import manager_server.ManagerServer.StateStoreEndpoint;
 import manager_client.ManagerServerClientServiceGrpc;
 import manager_client.ManagerClient.GetImgServerRequest;
 import manager_client.ManagerClient.GetImgServerResponse;
+import manager_client.ManagerClient.ImgServerEntry;
+import manager_client.ManagerClient.ImgServerList;
+import manager_client.ManagerClient.ListImgServersRequest;
 
+import io.grpc.stub.ServerCallStreamObserver;
 import io.grpc.stub.StreamObserver;
+import tpa1.clientlib.GrpcTransport;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
 
 public class Main {
     public static void main(String[] args) throws Exception {
         int managerPort = Integer.parseInt(System.getProperty("managerPort", "8000"));
         int redisPort = Integer.parseInt(System.getProperty("redisPort", "6379"));
         String managerIp = System.getProperty("managerIp", "127.0.0.1");
+        // shards do estado: "host:porta|réplica:porta|...,host2:porta" (padrão: Redis junto ao Manager)
+        List<StateStoreEndpoint> stateStores = parseStateStores(
+                System.getProperty("stateStores", managerIp + ":" + redisPort));
 
-        ImgRegistry registry = new ImgRegistry(managerIp, redisPort);
+        ImgRegistry registry = new ImgRegistry(stateStores, managerIp);
+        // ImgServers sem heartbeat (registo repetido a cada -DheartbeatSec) saem da lista
+        long imgServerTtlSec = Long.parseLong(System.getProperty("imgServerTtlSec", "30"));
+        if (imgServerTtlSec > 0) registry.startReaper(imgServerTtlSec * 1000L);
 
-        Server server = ServerBuilder.forPort(managerPort)
+        Server server = GrpcTransport.server(managerIp, managerPort)
                 .addService(new RegService(registry))
                 .addService(new DistService(registry))
                 .build()
                 .start();
 
-        System.out.printf("ManagerServer a correr em %s:%d (RedisPort=%d)\n", managerIp, managerPort, redisPort);
+        System.out.printf("ManagerServer a correr em %s:%d (RedisPort=%d, shards de estado=%d)\n",
+                managerIp, managerPort, redisPort, stateStores.size());
+        System.out.println("[Manager] gRPC: " + GrpcTransport.describe());
         server.awaitTermination();
     }
 
-    // Guarda ImgServers e fornece round-robin
+    static List<StateStoreEndpoint> parseStateStores(String spec) {
+        List<StateStoreEndpoint> out = new ArrayList<>();
+        for (String shard : spec.split(",")) {
+            if (shard.isBlank()) continue;
+            String[] hosts = shard.trim().split("\\|");
+            String[] primary = hosts[0].split(":");
+            StateStoreEndpoint.Builder b = StateStoreEndpoint.newBuilder()
+                    .setHost(primary[0])
+                    .setPort(primary.length > 1 ? Integer.parseInt(primary[1]) : 6379);
+            for (int i = 1; i < hosts.length; i++) b.addReplicas(hosts[i]);
+            out.add(b.build());
+        }
+        if (out.isEmpty()) throw new IllegalArgumentException("stateStores vazio");
+        return out;
+    }
+
+    // Guarda ImgServers, fornece round-robin e notifica os clientes que observam o conjunto
     static class ImgRegistry {
-        private final String managerIp; // IP onde também está o Redis
-        private final int redisPort;
+        private final List<StateStoreEndpoint> stateStores; // o primeiro shard guarda os contadores por cliente
+        private final String managerIp;
         private final List<Endpoint> servers = Collections.synchronizedList(new ArrayList<>());
         private final AtomicInteger rr = new AtomicInteger(0);
+        private final Map<String, Long> lastSeen = new HashMap<>(); // "ip:porta" → último registo/heartbeat (guardado por servers)
+        private final List<StreamObserver<ImgServerList>> watchers = new CopyOnWriteArrayList<>();
+        private final JedisPool[] redis; // por shard: contadores de jobs mantidos pelos ImgServers
+
+        ImgRegistry(List<StateStoreEndpoint> stateStores, String managerIp) {
+            this.stateStores = stateStores;
+            this.managerIp = managerIp;
+            this.redis = new JedisPool[stateStores.size()];
+        }
+
+        private synchronized JedisPool redis(int shard) {
+            if (redis[shard] == null) {
+                redis[shard] = new JedisPool(stateStores.get(shard).getHost(), stateStores.get(shard).getPort());
+            }
+            return redis[shard];
+        }
+
+        /** Shard das chaves por nó (running:<nó>, filas): mesmo hash que o ShardedStateStore do ImgServer. */
+        private JedisPool redisOf(String node) {
+            CRC32 crc = new CRC32();
+            crc.update(node.getBytes(StandardCharsets.UTF_8));
+            return redis((int) (crc.getValue() % stateStores.size()));
+        }
+
+        /** Jobs do cliente em fila ou a correr em todo o cluster (0 se o Redis falhar). */
+        long inflight(String clientId) {
+            try (Jedis j = redis(0).getResource()) {
+                String v = j.hget("client-inflight", clientId);
+                return v == null ? 0 : Long.parseLong(v);
+            } catch (RuntimeException e) {
+                return 0;
+            }
+        }
+
+        /**
+         * Round-robin que prefere o ImgServer onde o cliente tem menos jobs a correr,
+         * para que a quota do cliente se distribua pelos nós.
+         */
+        Endpoint next(String clientId) {
+            List<Endpoint> snapshot;
+            synchronized (servers) { snapshot = new ArrayList<>(servers); }
+            if (snapshot.isEmpty()) throw new IllegalStateException("Sem ImgServers registados");
+            int start = Math.abs(rr.getAndIncrement() % snapshot.size());
+            if (clientId.isEmpty()) return snapshot.get(start);
+            try {
+                Endpoint best = null;
+                long bestRunning = Long.MAX_VALUE;
+                for (int k = 0; k < snapshot.size(); k++) {
+                    Endpoint e = snapshot.get((start + k) % snapshot.size());
+                    String node = e.ip() + ":" + e.port();
+                    String v;
+                    try (Jedis j = redisOf(node).getResource()) {
+                        v = j.hget("running:" + node, clientId);
+                    }
+                    long n = v == null ? 0 : Long.parseLong(v);
+                    if (n < bestRunning) { bestRunning = n; best = e; }
+                }
+                return best;
+            } catch (RuntimeException e) {
+                return snapshot.get(start);
+            }
+        }
+
+        /**
+         * Registo ou heartbeat (os ImgServers repetem o registo a cada -DheartbeatSec).
+         * Só publica a lista quando o conjunto (ou um peso) muda.
+         */
+        void register(String ip, int port, int weight) {
+            Endpoint ep = new Endpoint(ip, port, Math.max(1, weight));
+            synchronized (servers) {
+                lastSeen.put(ip + ":" + port, System.currentTimeMillis());
+                if (servers.contains(ep)) return;
+                // um ImgServer reiniciado volta a registar-se: substitui a entrada antiga
+                servers.removeIf(e -> e.ip().equals(ip) && e.port() == port);
+                servers.add(ep);
+                System.out.printf("[Manager] Registado ImgServer %s:%d (peso=%d)\n", ip, port, ep.weight());
+                publish();
+            }
+        }
+
+        /** Remove os ImgServers sem heartbeat há mais de ttlMs e publica a nova lista. */
+        void expire(long ttlMs) {
+            long cutoff = System.currentTimeMillis() - ttlMs;
+            synchronized (servers) {
+                boolean removed = servers.removeIf(e -> {
+                    Long seen = lastSeen.get(e.ip() + ":" + e.port());
+                    if (seen != null && seen >= cutoff) return false;
+                    lastSeen.remove(e.ip() + ":" + e.port());
+                    System.out.printf("[Manager] ImgServer %s:%d sem heartbeat: removido\n", e.ip(), e.port());
+                    return true;
+                });
+                if (removed) publish();
+            }
+        }
+
+        void startReaper(long ttlMs) {
+            Thread t = new Thread(() -> {
+                while (true) {
+                    try {
+                        Thread.sleep(Math.max(1000L, ttlMs / 3));
+                        expire(ttlMs);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }, "imgserver-reaper");
+            t.setDaemon(true);
+            t.start();
+        }
+
+        void watch(StreamObserver<ImgServerList> obs) {
+            if (obs instanceof ServerCallStreamObserver<ImgServerList> sc) {
+                sc.setOnCancelHandler(() -> watchers.remove(obs));
+            }
+            // mesmo lock que register/publish: o snapshot nunca chega depois de uma lista mais recente
+            synchronized (servers) {
+                watchers.add(obs);
+                send(obs, snapshot());
+            }
+        }
 
-        ImgRegistry(String managerIp, int redisPort) { this.managerIp = managerIp; this.redisPort = redisPort; }
+        private ImgServerList snapshot() {
+            ImgServerList.Builder b = ImgServerList.newBuilder();
+            synchronized (servers) {
+                for (Endpoint e : servers) {
+                    b.addServers(ImgServerEntry.newBuilder()
+                            .setImgServerIp(e.ip())
+                            .setImgServerPort(e.port())
+                            .setWeight(e.weight()));
+                }
+            }
+            return b.build();
+        }
 
-        void register(String ip, int port) {
-            servers.add(new Endpoint(ip, port));
-            System.out.printf("[Manager] Registado ImgServer %s:%d\n", ip, port);
+        /** Chamado com o lock de servers. */
+        private void publish() {
+            ImgServerList list = snapshot();
+            for (StreamObserver<ImgServerList> w : watchers) send(w, list);
         }
 
-        int getRedisPort() { return redisPort; }
-        String getRedisIp() { return managerIp; }
+        private void send(StreamObserver<ImgServerList> obs, ImgServerList list) {
+            try {
+                synchronized (obs) { obs.onNext(list); }
+            } catch (RuntimeException e) {
+                watchers.remove(obs); // cliente desligado
+            }
+        }
 
-        Endpoint next() {
-            if (servers.isEmpty()) throw new IllegalStateException("Sem ImgServers registados");
-            int i = Math.abs(rr.getAndIncrement() % servers.size());
-            return servers.get(i);
+        /**
+         * Porto para o campo redisPort (ImgServers antigos ligam-se a managerIp:redisPort):
+         * só faz sentido se o primeiro shard estiver no IP do Manager; senão 0 (campo omitido).
+         */
+        int legacyRedisPort() {
+            StateStoreEndpoint first = stateStores.get(0);
+            return first.getHost().equals(managerIp) ? first.getPort() : 0;
         }
+        List<StateStoreEndpoint> getStateStores() { return stateStores; }
+
     }
 
-    record Endpoint(String ip, int port) {}
+    record Endpoint(String ip, int port, int weight) {}
 
     // Service: ManagerServerRegistrationService
     static class RegService extends ManagerServerRegistrationServiceGrpc.ManagerServerRegistrationServiceImplBase {
@@ -63,13 +239,15 @@ public class Main {
         RegService(ImgRegistry reg){ this.reg = reg; }
 
         @Override
+        @SuppressWarnings("deprecation") // redisPort: compatibilidade com ImgServers antigos
         public void registerImgServer(RegisterImgServerRequest request, StreamObserver<RegisterImgServerResponse> responseObserver) {
-            reg.register(request.getImgServerIp(), request.getImgServerPort());
-            RegisterImgServerResponse resp = RegisterImgServerResponse.newBuilder()
-                    .setRedisPort(reg.getRedisPort())
-                    .setStatus("OK")
-                    .build();
-            responseObserver.onNext(resp);
+            reg.register(request.getImgServerIp(), request.getImgServerPort(), request.getWeight());
+            RegisterImgServerResponse.Builder resp = RegisterImgServerResponse.newBuilder()
+                    .addAllStateStores(reg.getStateStores())
+                    .setStatus("OK");
+            int legacyPort = reg.legacyRedisPort();
+            if (legacyPort > 0) resp.setRedisPort(legacyPort);
+            responseObserver.onNext(resp.build());
             responseObserver.onCompleted();
         }
     }
@@ -77,18 +255,34 @@ public class Main {
     // Service: ManagerServerClientService
     static class DistService extends ManagerServerClientServiceGrpc.ManagerServerClientServiceImplBase {
         private final ImgRegistry reg;
+        // jobs pendentes por cliente acima dos quais o Manager pede ao cliente para abrandar (0 = sem limite)
+        private static final long CLIENT_BACKLOG = Long.parseLong(System.getProperty("clientBacklog", "32"));
+        private static final int RETRY_AFTER_MS = Integer.parseInt(System.getProperty("retryAfterMs", "1000"));
+
         DistService(ImgRegistry reg){ this.reg = reg; }
 
         @Override
         public void getImgServer(GetImgServerRequest request, StreamObserver<GetImgServerResponse> responseObserver) {
-            Endpoint e = reg.next();
-            GetImgServerResponse resp = GetImgServerResponse.newBuilder()
+            String clientId = request.getClientId();
+            Endpoint e = reg.next(clientId);
+            GetImgServerResponse.Builder resp = GetImgServerResponse.newBuilder()
                     .setImgServerIp(e.ip())
-                    .setImgServerPort(e.port())
-                    .build();
-            System.out.printf("[Manager] Atribuído ImgServer %s:%d ao cliente\n", e.ip(), e.port());
-            responseObserver.onNext(resp);
+                    .setImgServerPort(e.port());
+            if (!clientId.isEmpty() && CLIENT_BACKLOG > 0 && reg.inflight(clientId) >= CLIENT_BACKLOG) {
+                resp.setRetryAfterMs(RETRY_AFTER_MS);
+                System.out.printf("[Manager] Cliente %s acima da quota (%d jobs pendentes): abrandar %d ms\n",
+                        clientId, CLIENT_BACKLOG, RETRY_AFTER_MS);
+            }
+            System.out.printf("[Manager] Atribuído ImgServer %s:%d ao cliente%s\n", e.ip(), e.port(),
+                    clientId.isEmpty() ? "" : " " + clientId);
+            responseObserver.onNext(resp.build());
             responseObserver.onCompleted();
         }
+
+        @Override
+        public void listImgServers(ListImgServersRequest request, StreamObserver<ImgServerList> responseObserver) {
+            // stream mantido aberto: novas listas são enviadas a cada registo
+            reg.watch(responseObserver);
+        }
     }
 }
\ No newline at end of file